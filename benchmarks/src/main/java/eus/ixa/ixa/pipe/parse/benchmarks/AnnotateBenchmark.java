@@ -0,0 +1,96 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package eus.ixa.ixa.pipe.parse.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.jdom2.JDOMException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eus.ixa.ixa.pipe.parse.Annotate;
+import ixa.kaflib.KAFDocument;
+
+/**
+ * Annotation of the NAF fixture, from the NAF string to the output string,
+ * with the NAF output ({@link Annotate#parseToKAF(KAFDocument)} plus
+ * serialization) and with the oneline output
+ * ({@link Annotate#parseToOneline(KAFDocument)}). {@code readNAF} measures
+ * the deserialization shared by both.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AnnotateBenchmark {
+
+  @Param("")
+  public String model;
+
+  @Param({ "no", "collins" })
+  public String headFinder;
+
+  private Annotate annotator;
+  private String naf;
+
+  @Setup
+  public void setUp() throws IOException {
+    this.annotator = new Annotate(Fixtures.properties(this.model, "en",
+        this.headFinder));
+    this.naf = Fixtures.read("en-document.naf");
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.annotator.close();
+  }
+
+  @Benchmark
+  public KAFDocument readNAF() throws IOException, JDOMException {
+    return KAFDocument.createFromStream(new BufferedReader(new StringReader(
+        this.naf)));
+  }
+
+  @Benchmark
+  public String parseToKAF() throws IOException, JDOMException {
+    final KAFDocument kaf = readNAF();
+    this.annotator.parseToKAF(kaf);
+    return kaf.toString();
+  }
+
+  @Benchmark
+  public String parseToOneline() throws IOException, JDOMException {
+    return this.annotator.parseToOneline(readNAF());
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import eus.ixa.ixa.pipe.parse.Flags;
+
+/**
+ * Loads the fixtures bundled with the benchmarks: tokenized sentences,
+ * treebank trees for every language of the head rules and a NAF document.
+ * The parser model is not bundled; the benchmarks using it take its path as
+ * the model parameter, e.g., {@code -p model=en-parser-chunking.bin}.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+final class Fixtures {
+
+  /**
+   * The sentence length buckets: up to 10 tokens, up to 25 tokens and
+   * longer.
+   */
+  static final int SHORT = 10;
+  static final int MEDIUM = 25;
+
+  private Fixtures() {
+  }
+
+  /**
+   * @param name
+   *          the name of the fixture
+   * @return the non-empty lines of the fixture
+   * @throws IOException
+   *           if the fixture is missing
+   */
+  static List<String> readLines(final String name) throws IOException {
+    final List<String> lines = new ArrayList<>();
+    try (BufferedReader breader = new BufferedReader(new InputStreamReader(
+        open(name), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = breader.readLine()) != null) {
+        if (!line.trim().isEmpty()) {
+          lines.add(line);
+        }
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * @param name
+   *          the name of the fixture
+   * @return the contents of the fixture
+   * @throws IOException
+   *           if the fixture is missing
+   */
+  static String read(final String name) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    try (BufferedReader breader = new BufferedReader(new InputStreamReader(
+        open(name), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = breader.readLine()) != null) {
+        sb.append(line).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param bucket
+   *          short, medium or long
+   * @return the English sentences whose number of tokens is in the bucket
+   * @throws IOException
+   *           if the fixture is missing
+   */
+  static List<String> sentences(final String bucket) throws IOException {
+    final List<String> sentences = new ArrayList<>();
+    for (final String sentence : readLines("en-sentences.txt")) {
+      final int tokens = sentence.split(" ").length;
+      final String sentenceBucket = tokens <= SHORT ? "short"
+          : tokens <= MEDIUM ? "medium" : "long";
+      if (sentenceBucket.equals(bucket)) {
+        sentences.add(sentence);
+      }
+    }
+    if (sentences.isEmpty()) {
+      throw new IllegalArgumentException("No sentences in bucket " + bucket);
+    }
+    return sentences;
+  }
+
+  /**
+   * @param model
+   *          the model parameter
+   * @param language
+   *          the language
+   * @param headFinder
+   *          the head finder option
+   * @return the annotation properties
+   */
+  static Properties properties(final String model, final String language,
+      final String headFinder) {
+    if (model == null || model.isEmpty()) {
+      throw new IllegalArgumentException(
+          "This benchmark needs a parser model: -p model=path/to/model.bin");
+    }
+    final Properties properties = new Properties();
+    properties.setProperty("model", model);
+    properties.setProperty("language", language);
+    properties.setProperty("headFinder", headFinder);
+    properties.setProperty("threads", Flags.DEFAULT_THREADS);
+    return properties;
+  }
+
+  private static InputStream open(final String name) throws IOException {
+    final InputStream is = Fixtures.class.getResourceAsStream("/fixtures/"
+        + name);
+    if (is == null) {
+      throw new IOException("Missing fixture " + name);
+    }
+    return is;
+  }
+}
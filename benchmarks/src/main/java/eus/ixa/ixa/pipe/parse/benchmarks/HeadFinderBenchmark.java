@@ -0,0 +1,92 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package eus.ixa.ixa.pipe.parse.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import eus.ixa.ixa.pipe.heads.CollinsHeadFinder;
+import opennlp.tools.parser.Parse;
+
+/**
+ * Head finding with the head rules of each language over the treebank
+ * fixtures. {@link CollinsHeadFinder#printHeads(Parse)} renames the labels of
+ * the tree, so it is measured together with reading the tree again; subtract
+ * {@link TreebankBenchmark#parseParse(Blackhole)} to get the cost of marking
+ * the heads. {@code findHeads} measures the head rules alone.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeadFinderBenchmark {
+
+  @Param({ "en", "es", "ca", "it" })
+  public String language;
+
+  private CollinsHeadFinder headFinder;
+  private List<String> trees;
+  private List<Parse> parsedTrees;
+
+  @Setup
+  public void setUp() throws IOException {
+    final Properties properties = new Properties();
+    properties.setProperty("language", this.language);
+    this.headFinder = new CollinsHeadFinder(properties);
+    this.trees = Fixtures.readLines(this.language + "-trees.txt");
+    this.parsedTrees = new ArrayList<>(this.trees.size());
+    for (final String tree : this.trees) {
+      this.parsedTrees.add(Parse.parseParse(tree));
+    }
+  }
+
+  @Benchmark
+  public void findHeads(final Blackhole blackhole) {
+    for (final Parse tree : this.parsedTrees) {
+      blackhole.consume(this.headFinder.findHeads(tree));
+    }
+  }
+
+  @Benchmark
+  public void parseAndPrintHeads(final Blackhole blackhole) {
+    for (final String tree : this.trees) {
+      final Parse parsedTree = Parse.parseParse(tree);
+      this.headFinder.printHeads(parsedTree);
+      blackhole.consume(parsedTree);
+    }
+  }
+}
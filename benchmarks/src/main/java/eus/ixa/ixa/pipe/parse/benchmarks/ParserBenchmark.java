@@ -0,0 +1,100 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package eus.ixa.ixa.pipe.parse.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eus.ixa.ixa.pipe.parse.ConstituentParser;
+import eus.ixa.ixa.pipe.parse.Flags;
+import opennlp.tools.parser.Parse;
+
+/**
+ * Throughput of {@link ConstituentParser#parse(String[], int)}, in sentences
+ * per second, by sentence length bucket and beam policy. Run it with several JMH threads
+ * ({@code -t}) to measure the parser pool under concurrency.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ParserBenchmark {
+
+  @Param({ "short", "medium", "long" })
+  public String bucket;
+
+  @Param("")
+  public String model;
+
+  @Param({ "fixed", "adaptive" })
+  public String beamPolicy;
+
+  private ConstituentParser parser;
+  private String[][] sentences;
+
+  /**
+   * The next sentence parsed by each benchmark thread.
+   */
+  @State(Scope.Thread)
+  public static class Cursor {
+    private int next;
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    final Properties properties = Fixtures.properties(this.model, "en",
+        Flags.DEFAULT_HEADFINDER);
+    properties.setProperty("beamPolicy", this.beamPolicy);
+    this.parser = new ConstituentParser(properties);
+    final List<String> bucketSentences = Fixtures.sentences(this.bucket);
+    this.sentences = new String[bucketSentences.size()][];
+    for (int i = 0; i < this.sentences.length; i++) {
+      this.sentences[i] = bucketSentences.get(i).split(" ");
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.parser.close();
+  }
+
+  @Benchmark
+  public Parse[] parse(final Cursor cursor) {
+    final String[] sentence = this.sentences[cursor.next++
+        % this.sentences.length];
+    return this.parser.parse(sentence, 1);
+  }
+}
@@ -54,6 +54,10 @@ public class CatalanHeadRules implements opennlp.tools.parser.HeadRules,
   private static class HeadRule {
     public boolean leftToRight;
     public String[] tags;
+    /**
+     * The tags compiled once, matching them as regular expressions.
+     */
+    public HeadTags compiledTags;
 
     public HeadRule(final boolean l2r, final String[] tags) {
       this.leftToRight = l2r;
@@ -66,6 +70,7 @@ public class CatalanHeadRules implements opennlp.tools.parser.HeadRules,
       }
 
       this.tags = tags;
+      this.compiledTags = HeadTags.regex(tags);
     }
 
     @Override
@@ -83,6 +88,15 @@ public class CatalanHeadRules implements opennlp.tools.parser.HeadRules,
     }
   }
 
+  private static final HeadTags NOMINAL_TAGS1 = HeadTags.regex("NC.*S.*",
+      "NP.*", "NC.*P.*", "GRUP\\.NOM", "AQA.*", "AQC.*");
+  private static final HeadTags NOMINAL_TAGS2 = HeadTags.regex("\\$", "SA",
+      "S\\.A", "GRUP\\.A");
+  private static final HeadTags NOMINAL_TAGS3 = HeadTags.regex("AQ0.*", "AQS.*",
+      "AQ[AC].*", "AO.*", "GRUP\\.A", "S\\.A", "RG", "RN", "GRUP\\.NOM");
+  private static final HeadTags NOMINAL_TAGS4 = HeadTags.equalTo("COORD",
+      "CONJ", "CS");
+
   private Map<String, HeadRule> headRules;
   private final Set<String> punctSet;
 
@@ -118,14 +132,9 @@ public class CatalanHeadRules implements opennlp.tools.parser.HeadRules,
     HeadRule hr;
     // if (type.equals("SN") || type.equals("GRUP.NOM")) {
     if (type.startsWith("SN") || type.startsWith("GRUP.NOM")) {
-      final String[] tags1 = { "NC.*S.*", "NP.*","NC.*P.*", "GRUP\\.NOM", "AQA.*","AQC.*"};
-
-      for (int ci = constituents.length - 1; ci >= 0; ci--) {
-        for (int ti = tags1.length - 1; ti >= 0; ti--) {
-          if (constituents[ci].getType().matches(tags1[ti])) {
-            return constituents[ci];
-          }
-        }
+      Parse head = NOMINAL_TAGS1.findLast(constituents);
+      if (head != null) {
+        return head;
       }
       for (final Parse constituent : constituents) {
         if (constituent.getType().startsWith("SN")
@@ -133,57 +142,25 @@ public class CatalanHeadRules implements opennlp.tools.parser.HeadRules,
           return constituent;
         }
       }
-      final String[] tags2 = { "\\$", "SA", "S\\.A", "GRUP\\.A"};
-      for (int ci = constituents.length - 1; ci >= 0; ci--) {
-        for (int ti = tags2.length - 1; ti >= 0; ti--) {
-          if (constituents[ci].getType().matches(tags2[ti])) {
-            return constituents[ci];
-          }
-        }
+      if ((head = NOMINAL_TAGS2.findLast(constituents)) != null) {
+        return head;
       }
-      final String[] tags3 = { "AQ0.*", "AQS.*", "AQ[AC].*","AO.*","GRUP\\.A","S\\.A","RG","RN","GRUP\\.NOM" };
-      for (int ci = constituents.length - 1; ci >= 0; ci--) {
-        for (int ti = tags3.length - 1; ti >= 0; ti--) {
-          if (constituents[ci].getType().matches(tags3[ti])) {
-            return constituents[ci];
-          }
-        }
+      if ((head = NOMINAL_TAGS3.findLast(constituents)) != null) {
+        return head;
       }
-      final String[] tags4 = { "COORD", "CONJ", "CS" };
-      for (int ci = constituents.length - 1; ci >= 0; ci--) {
-        for (int ti = tags4.length - 1; ti >= 0; ti--) {
-          if (constituents[ci].getType().equals(tags4[ti])) {
-            return constituents[ci];
-          }
-        }
+      if ((head = NOMINAL_TAGS4.findLast(constituents)) != null) {
+        return head;
       }
       return constituents[constituents.length - 1];
     } else if ((hr = this.headRules.get(type)) != null) {
-      final String[] tags = hr.tags;
-      final int cl = constituents.length;
-      final int tl = tags.length;
-      if (hr.leftToRight) {
-        for (String tag : tags) {
-          for (Parse constituent : constituents) {
-            // TODO: Examine this function closely are we infra-heading or
-            // over-heading?
-            if (constituent.getType().matches(tag)) {
-              // if (constituents[ci].getType().equals(tags[ti])) {
-              return constituent;
-            }
-          }
-        }
-        return constituents[0];
-      } else {
-        for (String tag : tags) {
-          for (int ci = cl - 1; ci >= 0; ci--) {
-            if (constituents[ci].getType().matches(tag)) {
-              return constituents[ci];
-            }
-          }
-        }
-        return constituents[cl - 1];
+      final Parse head = hr.compiledTags.findByTagOrder(constituents,
+          hr.leftToRight);
+      if (head != null) {
+        return head;
       }
+      //else return the first (left) or last (right) constituent
+      return hr.leftToRight ? constituents[0]
+          : constituents[constituents.length - 1];
     }
     return constituents[constituents.length - 1];
   }
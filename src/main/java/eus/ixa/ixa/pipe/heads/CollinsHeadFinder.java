@@ -17,10 +17,10 @@ package eus.ixa.ixa.pipe.heads;
 
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import opennlp.tools.parser.HeadRules;
 import opennlp.tools.parser.Parse;
@@ -36,7 +36,9 @@ import opennlp.tools.parser.Parse;
  */
 public class CollinsHeadFinder implements HeadFinder {
 
-  private static Map<String, HeadRules> headRulesMap = new HashMap<>();
+  private static Map<String, HeadRules> headRulesMap = new ConcurrentHashMap<>();
+  private static final ThreadLocal<Traversal> TRAVERSALS = ThreadLocal
+      .withInitial(Traversal::new);
   private final HeadRules headRules;
   private static boolean DEBUG = false;
   public static final String HEADMARK = "=H";
@@ -48,7 +50,7 @@ public class CollinsHeadFinder implements HeadFinder {
 
   private HeadRules loadHeadRules(final String lang) {
     try {
-      if (headRulesMap.get("lang") == null) {
+      if (headRulesMap.get(lang) == null) {
         final InputStream is = getHeadRulesFile(lang);
         if (lang.equalsIgnoreCase("en")) {
           headRulesMap.put(lang,
@@ -96,37 +98,124 @@ public class CollinsHeadFinder implements HeadFinder {
    * eus.ixa.ixa.pipe.heads.HeadFinder#printHeads(opennlp.tools.parser.Parse)
    */
   public void printHeads(final Parse parse) {
+    markHeads(parse, findHeads(parse));
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * eus.ixa.ixa.pipe.heads.HeadFinder#findHeads(opennlp.tools.parser.Parse)
+   */
+  public int[] findHeads(final Parse parse) {
     if (parse == null || parse.getChildCount() == 0) {
       throw new IllegalArgumentException(
           "Can't return head of null or leaf Parse.");
     }
-    final LinkedList<Parse> nodes = new LinkedList<>();
-    nodes.add(parse);
-    // This is a recursive iteration over the whole parse tree
-    while (!nodes.isEmpty()) {
-      final Parse currentNode = nodes.removeFirst();
-      // When a node is here its '=H' annotation has already happened
+    final Traversal traversal = TRAVERSALS.get();
+    traversal.clear();
+    traversal.push(parse);
+    int node = 0;
+    // This is an iterative preorder traversal over the whole parse tree
+    while (traversal.size > 0) {
+      final Parse currentNode = traversal.pop();
+      // When a node is here its '=H' annotation may have already happened
       // so it '=H' has to be removed to match with the head rules
-      final String type = currentNode.getType().replace(HEADMARK, "");
+      final String type = removeHeadMark(currentNode.getType());
       if (DEBUG) {
         System.err.println("-> Current Node: " + type + " "
             + currentNode.toString());
       }
       final Parse[] children = currentNode.getChildren();
-      Parse headChild = null;
+      int head = -1;
       if (children.length > 0) {
-        headChild = this.headRules.getHead(children, type);
-      }
-      // For every child, if it is the head, annotate with '=H'
-      // and also add to the queue for the recursive processing
-      for (final Parse child : currentNode.getChildren()) {
-        if (child == headChild) {
-          child.setType(child.getType() + HEADMARK);
+        final Parse headChild = this.headRules.getHead(children, type);
+        for (int i = 0; i < children.length && headChild != null; i++) {
+          if (children[i] == headChild) {
+            head = i;
+            break;
+          }
         }
-        // add child to last of LinkedList which will
-        // now take as currentNode the child of this child
-        nodes.addLast(child);
       }
+      traversal.setHead(node++, head);
+      // push the children from right to left so that the first child is
+      // visited next
+      for (int i = children.length - 1; i >= 0; i--) {
+        traversal.push(children[i]);
+      }
+    }
+    return Arrays.copyOf(traversal.heads, node);
+  }
+
+  /**
+   * Renders the heads found by {@link #findHeads(Parse)} by appending the
+   * {@link #HEADMARK} to the label of every head constituent.
+   * 
+   * @param parse
+   *          the parse object
+   * @param heads
+   *          the head child position of every node in preorder
+   */
+  public static void markHeads(final Parse parse, final int[] heads) {
+    final Traversal traversal = TRAVERSALS.get();
+    traversal.clear();
+    traversal.push(parse);
+    int node = 0;
+    while (traversal.size > 0) {
+      final Parse currentNode = traversal.pop();
+      final Parse[] children = currentNode.getChildren();
+      final int head = heads[node++];
+      if (head >= 0) {
+        children[head].setType(children[head].getType() + HEADMARK);
+      }
+      for (int i = children.length - 1; i >= 0; i--) {
+        traversal.push(children[i]);
+      }
+    }
+  }
+
+  /**
+   * @param type
+   *          a constituent label
+   * @return the label without any {@link #HEADMARK}
+   */
+  public static String removeHeadMark(final String type) {
+    // most labels have no mark, String.replace compiles a pattern
+    return type.indexOf(HEADMARK) < 0 ? type : type.replace(HEADMARK, "");
+  }
+
+  /**
+   * The stack and result buffer of a traversal, reused by every traversal in
+   * the same thread.
+   */
+  private static final class Traversal {
+    private Parse[] stack = new Parse[64];
+    private int size;
+    private int[] heads = new int[256];
+
+    private void push(final Parse parse) {
+      if (this.size == this.stack.length) {
+        this.stack = Arrays.copyOf(this.stack, this.size * 2);
+      }
+      this.stack[this.size++] = parse;
+    }
+
+    private void clear() {
+      Arrays.fill(this.stack, 0, this.size, null);
+      this.size = 0;
+    }
+
+    private Parse pop() {
+      final Parse parse = this.stack[--this.size];
+      this.stack[this.size] = null;
+      return parse;
+    }
+
+    private void setHead(final int node, final int head) {
+      if (node == this.heads.length) {
+        this.heads = Arrays.copyOf(this.heads, node * 2);
+      }
+      this.heads[node] = head;
     }
   }
 
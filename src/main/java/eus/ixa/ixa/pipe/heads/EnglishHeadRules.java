@@ -54,6 +54,10 @@ public class EnglishHeadRules implements opennlp.tools.parser.HeadRules,
   private static class HeadRule {
     public boolean leftToRight;
     public String[] tags;
+    /**
+     * The tags compiled once, matching whole labels.
+     */
+    public HeadTags compiledTags;
 
     public HeadRule(final boolean l2r, final String[] tags) {
       this.leftToRight = l2r;
@@ -66,6 +70,7 @@ public class EnglishHeadRules implements opennlp.tools.parser.HeadRules,
       }
 
       this.tags = tags;
+      this.compiledTags = HeadTags.equalTo(tags);
     }
 
     @Override
@@ -83,6 +88,13 @@ public class EnglishHeadRules implements opennlp.tools.parser.HeadRules,
     }
   }
 
+  private static final HeadTags NP_TAGS1 = HeadTags.equalTo("NN", "NNP",
+      "NNPS", "NNS", "NX", "JJR", "POS");
+  private static final HeadTags NP_TAGS2 = HeadTags.equalTo("$", "ADJP",
+      "PRN");
+  private static final HeadTags NP_TAGS3 = HeadTags.equalTo("JJ", "JJS", "RB",
+      "QP");
+
   private Map<String, HeadRule> headRules;
   private final Set<String> punctSet;
 
@@ -118,13 +130,9 @@ public class EnglishHeadRules implements opennlp.tools.parser.HeadRules,
     HeadRule hr;
     //right
     if (type.equals("NP") || type.equals("NX")) {
-      final String[] tags1 = { "NN", "NNP", "NNPS", "NNS", "NX", "JJR", "POS" };
-      for (int ci = constituents.length - 1; ci >= 0; ci--) {
-        for (int ti = tags1.length - 1; ti >= 0; ti--) {
-          if (constituents[ci].getType().equals(tags1[ti])) {
-            return constituents[ci];
-          }
-        }
+      Parse head = NP_TAGS1.findLast(constituents);
+      if (head != null) {
+        return head;
       }
       //left
       for (final Parse constituent : constituents) {
@@ -133,13 +141,8 @@ public class EnglishHeadRules implements opennlp.tools.parser.HeadRules,
         }
       }
       //right
-      final String[] tags2 = { "$", "ADJP", "PRN" };
-      for (int ci = constituents.length - 1; ci >= 0; ci--) {
-        for (int ti = tags2.length - 1; ti >= 0; ti--) {
-          if (constituents[ci].getType().equals(tags2[ti])) {
-            return constituents[ci];
-          }
-        }
+      if ((head = NP_TAGS2.findLast(constituents)) != null) {
+        return head;
       }
       //right
       for (int ci = constituents.length - 1; ci >= 0; ci--) {
@@ -148,42 +151,20 @@ public class EnglishHeadRules implements opennlp.tools.parser.HeadRules,
         }
       }
       //right
-      final String[] tags3 = { "JJ", "JJS", "RB", "QP" };
-      for (int ci = constituents.length - 1; ci >= 0; ci--) {
-        for (int ti = tags3.length - 1; ti >= 0; ti--) {
-          if (constituents[ci].getType().equals(tags3[ti])) {
-            return constituents[ci];
-          }
-        }
+      if ((head = NP_TAGS3.findLast(constituents)) != null) {
+        return head;
       }
       //else return the last word
       return constituents[constituents.length - 1];
     } else if ((hr = this.headRules.get(type)) != null) {
-      final String[] tags = hr.tags;
-      final int cl = constituents.length;
-      final int tl = tags.length;
-      if (hr.leftToRight) {
-        for (String tag : tags) {
-          for (Parse constituent : constituents) {
-            if (constituent.getType().equals(tag)) {
-              return constituent;
-            }
-          }
-        }
-        //else return the first constituent
-        return constituents[0];
-      } else {
-        //right
-        for (String tag : tags) {
-          for (int ci = cl - 1; ci >= 0; ci--) {
-            if (constituents[ci].getType().equals(tag)) {
-              return constituents[ci];
-            }
-          }
-        }
-        //else return the last constituent
-        return constituents[cl - 1];
+      final Parse head = hr.compiledTags.findByTagOrder(constituents,
+          hr.leftToRight);
+      if (head != null) {
+        return head;
       }
+      //else return the first (left) or last (right) constituent
+      return hr.leftToRight ? constituents[0]
+          : constituents[constituents.length - 1];
     }
     return constituents[constituents.length - 1];
   }
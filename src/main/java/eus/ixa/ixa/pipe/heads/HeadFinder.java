@@ -35,4 +35,17 @@ public interface HeadFinder {
    */
   void printHeads(Parse parse);
 
+  /**
+   * Finds the heads of every constituent without modifying the Parse object.
+   * The nodes of the tree are numbered in preorder (the root is 0, then its
+   * first child and its descendants, and so on) and the result has one entry
+   * per node: the position of the head among the children of the node, or -1
+   * for the nodes without head (tokens and POS tags).
+   * 
+   * @param parse
+   *          the parse object
+   * @return the head child position of every node in preorder
+   */
+  int[] findHeads(Parse parse);
+
 }
@@ -0,0 +1,168 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.heads;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import opennlp.tools.parser.Parse;
+
+/**
+ * An ordered list of tags of a head rule compiled once. For every constituent
+ * label it computes the rank, the position of the first tag of the list
+ * matching the label, and keeps it in a table so that afterwards finding a
+ * head is a lookup per constituent, without compiling regular expressions or
+ * allocating objects.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+final class HeadTags {
+
+  /**
+   * Labels seen by a treebank tagset are few; above this size ranks are
+   * computed but not stored to bound the memory used with unexpected labels.
+   */
+  private static final int MAX_LABELS = 4096;
+  private static final Integer NO_MATCH = -1;
+
+  private enum Match {
+    EQUALS, PREFIX, REGEX
+  }
+
+  private final String[] tags;
+  private final Pattern[] patterns;
+  private final Match match;
+  private final ConcurrentHashMap<String, Integer> ranks = new ConcurrentHashMap<>();
+
+  private HeadTags(final String[] tags, final Match match) {
+    this.tags = tags;
+    this.match = match;
+    if (match == Match.REGEX) {
+      this.patterns = new Pattern[tags.length];
+      for (int i = 0; i < tags.length; i++) {
+        this.patterns[i] = Pattern.compile(tags[i]);
+      }
+    } else {
+      this.patterns = null;
+    }
+  }
+
+  /**
+   * @param tags the tags
+   * @return tags matching labels equal to them
+   */
+  static HeadTags equalTo(final String... tags) {
+    return new HeadTags(tags, Match.EQUALS);
+  }
+
+  /**
+   * @param tags the tags
+   * @return tags matching labels starting with them
+   */
+  static HeadTags prefixOf(final String... tags) {
+    return new HeadTags(tags, Match.PREFIX);
+  }
+
+  /**
+   * @param tags the regular expressions
+   * @return tags matching labels fully matching the regular expressions, as
+   *         {@link String#matches(String)} does
+   */
+  static HeadTags regex(final String... tags) {
+    return new HeadTags(tags, Match.REGEX);
+  }
+
+  /**
+   * @param label
+   *          the label of a constituent
+   * @return the position of the first tag matching the label, -1 if none
+   */
+  int rank(final String label) {
+    Integer rank = this.ranks.get(label);
+    if (rank == null) {
+      rank = computeRank(label);
+      if (this.ranks.size() < MAX_LABELS) {
+        this.ranks.put(label, rank);
+      }
+    }
+    return rank;
+  }
+
+  private Integer computeRank(final String label) {
+    for (int ti = 0; ti < this.tags.length; ti++) {
+      final boolean matches;
+      switch (this.match) {
+      case PREFIX:
+        matches = label.startsWith(this.tags[ti]);
+        break;
+      case REGEX:
+        matches = this.patterns[ti].matcher(label).matches();
+        break;
+      default:
+        matches = label.equals(this.tags[ti]);
+      }
+      if (matches) {
+        return ti;
+      }
+    }
+    return NO_MATCH;
+  }
+
+  /**
+   * Finds the rightmost constituent matching any of the tags.
+   *
+   * @param constituents
+   *          the constituents
+   * @return the constituent or null if none matches
+   */
+  Parse findLast(final Parse[] constituents) {
+    for (int ci = constituents.length - 1; ci >= 0; ci--) {
+      if (rank(constituents[ci].getType()) >= 0) {
+        return constituents[ci];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Finds the constituent matching the earliest tag; among constituents
+   * matching the same tag the first one in the search direction is chosen.
+   * This is equivalent to looping over the tags and, for each tag, over the
+   * constituents.
+   *
+   * @param constituents
+   *          the constituents
+   * @param leftToRight
+   *          the search direction
+   * @return the constituent or null if none matches
+   */
+  Parse findByTagOrder(final Parse[] constituents, final boolean leftToRight) {
+    final int cl = constituents.length;
+    Parse head = null;
+    int headRank = Integer.MAX_VALUE;
+    for (int i = 0; i < cl && headRank > 0; i++) {
+      final Parse constituent = constituents[leftToRight ? i : cl - 1 - i];
+      final int rank = rank(constituent.getType());
+      if (rank >= 0 && rank < headRank) {
+        head = constituent;
+        headRank = rank;
+      }
+    }
+    return head;
+  }
+}
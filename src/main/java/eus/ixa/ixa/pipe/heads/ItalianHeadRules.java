@@ -54,6 +54,10 @@ public class ItalianHeadRules implements opennlp.tools.parser.HeadRules,
   private static class HeadRule {
     public boolean leftToRight;
     public String[] tags;
+    /**
+     * The tags compiled once, matching label prefixes from the left and whole labels from the right.
+     */
+    public HeadTags compiledTags;
 
     public HeadRule(final boolean l2r, final String[] tags) {
       this.leftToRight = l2r;
@@ -66,6 +70,7 @@ public class ItalianHeadRules implements opennlp.tools.parser.HeadRules,
       }
 
       this.tags = tags;
+      this.compiledTags = l2r ? HeadTags.prefixOf(tags) : HeadTags.equalTo(tags);
     }
 
     @Override
@@ -83,6 +88,13 @@ public class ItalianHeadRules implements opennlp.tools.parser.HeadRules,
     }
   }
 
+  private static final HeadTags NP_TAGS1 = HeadTags.equalTo("NOU~CS",
+      "NOU~PR", "NOU~CP", "ADJ~PO");
+  private static final HeadTags NP_TAGS2 = HeadTags.equalTo("$", "ADJP",
+      "PRN");
+  private static final HeadTags NP_TAGS3 = HeadTags.equalTo("ADJ~QU",
+      "ADJ~PO", "ADVP", "ADVB");
+
   private Map<String, HeadRule> headRules;
   private final Set<String> punctSet;
 
@@ -117,72 +129,31 @@ public class ItalianHeadRules implements opennlp.tools.parser.HeadRules,
     }
     HeadRule hr;
     if (type.equals("NP")) {
-      final String[] tags1 = { "NOU~CS", "NOU~PR","NOU~CP", "ADJ~PO" };
-
-      for (int ci = constituents.length - 1; ci >= 0; ci--) {
-        for (int ti = tags1.length - 1; ti >= 0; ti--) {
-          if (constituents[ci].getType().equals(tags1[ti])) {
-            return constituents[ci];
-          }
-        }
+      Parse head = NP_TAGS1.findLast(constituents);
+      if (head != null) {
+        return head;
       }
       for (final Parse constituent : constituents) {
         if (constituent.getType().equals("NP")) {
           return constituent;
         }
       }
-      final String[] tags2 = { "$", "ADJP", "PRN" };
-      for (int ci = constituents.length - 1; ci >= 0; ci--) {
-        for (int ti = tags2.length - 1; ti >= 0; ti--) {
-          if (constituents[ci].getType().equals(tags2[ti])) {
-            return constituents[ci];
-          }
-        }
+      if ((head = NP_TAGS2.findLast(constituents)) != null) {
+        return head;
       }
-      final String[] tags3 = { "ADJ~QU", "ADJ~PO", "ADVP", "ADVB" };
-      for (int ci = constituents.length - 1; ci >= 0; ci--) {
-        for (int ti = tags3.length - 1; ti >= 0; ti--) {
-          if (constituents[ci].getType().equals(tags3[ti])) {
-            return constituents[ci];
-          }
-        }
+      if ((head = NP_TAGS3.findLast(constituents)) != null) {
+        return head;
       }
-      /*final String[] tags4 = { "COORD", "CONJ", "CS" };
-      for (int ci = constituents.length - 1; ci >= 0; ci--) {
-        for (int ti = tags4.length - 1; ti >= 0; ti--) {
-          if (constituents[ci].getType().equals(tags4[ti])) {
-            return constituents[ci];
-          }
-        }
-      }*/
       return constituents[constituents.length - 1];
     } else if ((hr = this.headRules.get(type)) != null) {
-      final String[] tags = hr.tags;
-      final int cl = constituents.length;
-      final int tl = tags.length;
-      if (hr.leftToRight) {
-        for (String tag : tags) {
-          for (Parse constituent : constituents) {
-            // TODO: Examine this function closely are we infra-heading or
-            // over-heading?
-            if (constituent.getType().equals(tag) || constituent.getType()
-                .startsWith(tag)) {
-              // if (constituents[ci].getType().equals(tags[ti])) {
-              return constituent;
-            }
-          }
-        }
-        return constituents[0];
-      } else {
-        for (String tag : tags) {
-          for (int ci = cl - 1; ci >= 0; ci--) {
-            if (constituents[ci].getType().equals(tag)) {
-              return constituents[ci];
-            }
-          }
-        }
-        return constituents[cl - 1];
+      final Parse head = hr.compiledTags.findByTagOrder(constituents,
+          hr.leftToRight);
+      if (head != null) {
+        return head;
       }
+      //else return the first (left) or last (right) constituent
+      return hr.leftToRight ? constituents[0]
+          : constituents[constituents.length - 1];
     }
     return constituents[constituents.length - 1];
   }
@@ -18,18 +18,42 @@ package eus.ixa.ixa.pipe.parse;
 import eus.ixa.ixa.pipe.heads.CollinsHeadFinder;
 import eus.ixa.ixa.pipe.heads.HeadFinder;
 import ixa.kaflib.KAFDocument;
+import ixa.kaflib.Term;
 import ixa.kaflib.WF;
 import opennlp.tools.parser.Parse;
 
-import java.io.FileNotFoundException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * 
@@ -40,15 +64,48 @@ import java.util.Properties;
  * @version 2020-01-22
  * 
  */
-public class Annotate {
+public class Annotate implements AutoCloseable {
+
+  /**
+   * Sentences parsed ahead of the one being written, per thread, when
+   * streaming the output.
+   */
+  private static final int SENTENCES_AHEAD_PER_THREAD = 4;
+  /**
+   * The extension of the treebank files with headwords.
+   */
+  private static final String HEAD_EXTENSION = ".head";
 
   private boolean markHeads;
   private final ConstituentParser parser;
   private HeadFinder headFinder;
+  /**
+   * The pool used to parse the sentences of a document concurrently; null if
+   * sentences are parsed in the calling thread.
+   */
+  private ExecutorService sentenceExecutor;
+  /**
+   * The persistent cache of parse results; null if disabled.
+   */
+  private DiskParseCache diskCache;
+  private int threads;
+  /**
+   * Whether sentences are parsed on top of the part of speech tags of the
+   * terms of the document instead of being tagged by the parser.
+   */
+  private boolean preTagged;
+  /**
+   * Maps the tags of the terms to the tagset of the model; tags not in the
+   * map are used as they are.
+   */
+  private Map<String, String> tagMap = new HashMap<>();
+  private final ParserMetrics metrics = ParserMetrics.getDefault();
 
   /**
    * Constructor that takes into account lang options (en|es) loads the
    * corresponding parse model and decides whether to mark headWords or not.
+   * If the threads property is greater than one, the sentences of each
+   * document are parsed in parallel.
    * 
    * @param properties
    *          the configuration properties
@@ -67,6 +124,97 @@ public class Annotate {
     } else {
       this.markHeads = false;
     }
+    this.threads = Integer.parseInt(properties.getProperty("threads",
+        Flags.DEFAULT_THREADS));
+    if (this.threads > 1) {
+      this.sentenceExecutor = Executors.newFixedThreadPool(this.threads,
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("ixa-pipe-parse-%d").build());
+    }
+    final String diskCacheDir = properties.getProperty("diskCache");
+    if (diskCacheDir != null) {
+      final long maxBytes = Long.parseLong(properties.getProperty(
+          "diskCacheSize", Flags.DEFAULT_DISK_CACHE_SIZE)) * 1024 * 1024;
+      try {
+        this.diskCache = new DiskParseCache(Paths.get(diskCacheDir),
+            this.parser.getCacheKey(), maxBytes);
+      } catch (final IOException | IllegalArgumentException e) {
+        System.err.println("-> ERROR: Could not open the parse cache in "
+            + diskCacheDir + ", parsing without it: " + e.getMessage() + "!!");
+      }
+    }
+    this.preTagged = Boolean.parseBoolean(properties.getProperty("preTagged",
+        Flags.DEFAULT_PRE_TAGGED));
+    if (this.preTagged && !this.parser.acceptsTags()) {
+      System.err.println("-> WARNING: Pre-tagged parsing requires a chunking parser model, tagging with the model!!");
+      this.preTagged = false;
+    }
+    final String tagMapFile = properties.getProperty("tagMap");
+    if (this.preTagged && tagMapFile != null) {
+      this.tagMap = loadTagMap(Paths.get(tagMapFile));
+    }
+  }
+
+  /**
+   * Reads a tag map with one mapping per line, the tag of the terms and the
+   * tag of the model separated by whitespace; empty lines and lines starting
+   * with # are skipped.
+   * 
+   * @param tagMapFile
+   *          the tag map file
+   * @return the map
+   */
+  private static Map<String, String> loadTagMap(final Path tagMapFile) {
+    final Map<String, String> tagMap = new HashMap<>();
+    try (BufferedReader breader = Files.newBufferedReader(tagMapFile,
+        StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = breader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        final String[] mapping = line.split("\\s+");
+        if (mapping.length != 2) {
+          throw new IllegalArgumentException("Wrong tag map line in "
+              + tagMapFile + ": " + line);
+        }
+        tagMap.put(mapping[0], mapping[1]);
+      }
+    } catch (final IOException e) {
+      throw new UncheckedIOException("Could not load tag map " + tagMapFile, e);
+    }
+    return tagMap;
+  }
+
+  /**
+   * @param kaf
+   *          document containing WF and Term elements
+   * @return the part of speech tag of every WF of the document by WF id, if
+   *         sentences are parsed on top of the tags of the terms; null
+   *         otherwise. The tag of a term is its morphofeat, the fine grained
+   *         tag, or its pos if it has none; every WF of a multiword term gets
+   *         the tag of the term.
+   */
+  private Map<String, String> getTags(final KAFDocument kaf) {
+    if (!this.preTagged) {
+      return null;
+    }
+    final Map<String, String> tags = new HashMap<>();
+    for (final Term term : kaf.getTerms()) {
+      String tag = term.getMorphofeat();
+      if (tag == null || tag.isEmpty()) {
+        tag = term.getPos();
+      }
+      if (tag == null || tag.isEmpty()) {
+        continue;
+      }
+      tag = this.tagMap.getOrDefault(tag, tag);
+      for (final WF wf : term.getWFs()) {
+        tags.put(wf.getId(), tag);
+      }
+    }
+    return tags;
   }
 
   private void loadHeadFinder(final Properties properties) {
@@ -82,64 +230,256 @@ public class Annotate {
   }
 
   /**
-   * It takes an array of tokens and outputs a string with tokens joined by a
-   * whitespace.
+   * The parse trees of a sentence and, if heads are marked, the head child
+   * positions of every tree as computed by {@link HeadFinder#findHeads(Parse)}.
+   */
+  private static final class ParsedSentence {
+    private final List<WF> sentence;
+    private final Parse[] parses;
+    private final int[][] heads;
+
+    private ParsedSentence(final List<WF> sentence, final Parse[] parses,
+        final int[][] heads) {
+      this.sentence = sentence;
+      this.parses = parses;
+      this.heads = heads;
+    }
+
+    /**
+     * @param i
+     *          the position of the tree
+     * @return the heads of the tree or null if heads are not marked
+     */
+    private int[] getHeads(final int i) {
+      return this.heads == null ? null : this.heads[i];
+    }
+  }
+
+  /**
+   * Parses the sentences of a document. When sentences are parsed in
+   * parallel, they are submitted longest first: parsing time grows steeply
+   * with the number of tokens, so a long sentence submitted last would keep
+   * one thread busy after the others are done, whereas submitting it first
+   * lets the short ones fill the other threads meanwhile.
    * 
-   * @param tokens
-   *          an array of words
-   * @return string representing one sentence for each array
+   * @param kaf
+   *          document containing WF and Term elements
+   * @param deadline
+   *          the nano time at which the request runs out of time, or
+   *          {@link ConstituentParser#NO_DEADLINE}
+   * @return the parsed sentences in document order
    */
-  private String getSentenceFromTokens(final String[] tokens) {
-    final StringBuilder sb = new StringBuilder();
-    for (final String token : tokens) {
-      sb.append(token).append(" ");
+  private List<ParsedSentence> getParse(final KAFDocument kaf,
+      final long deadline) {
+    final List<List<WF>> sentences = getSentences(kaf);
+    final Map<String, String> tags = getTags(kaf);
+    final List<ParsedSentence> parsedSentences = new ArrayList<>(
+        sentences.size());
+    if (this.sentenceExecutor == null) {
+      for (final List<WF> sentence : sentences) {
+        parsedSentences.add(parseSentence(sentence, tags, deadline));
+      }
+    } else {
+      // submit the sentences longest first and collect the trees in
+      // document order
+      final List<Integer> longestFirst = new ArrayList<>(sentences.size());
+      for (int i = 0; i < sentences.size(); i++) {
+        longestFirst.add(i);
+      }
+      longestFirst.sort((i, j) -> Integer.compare(sentences.get(j).size(),
+          sentences.get(i).size()));
+      final List<Future<ParsedSentence>> pendingSentences = new ArrayList<>(
+          Collections.<Future<ParsedSentence>> nCopies(sentences.size(), null));
+      try {
+        for (final int i : longestFirst) {
+          final List<WF> sentence = sentences.get(i);
+          pendingSentences.set(i, this.sentenceExecutor
+              .submit(() -> parseSentence(sentence, tags, deadline)));
+        }
+        for (final Future<ParsedSentence> pendingSentence : pendingSentences) {
+          parsedSentences.add(getParsedSentence(pendingSentence));
+        }
+      } finally {
+        cancelAll(pendingSentences);
+      }
     }
-    return sb.toString();
+    return parsedSentences;
   }
 
   /**
    * @param kaf
    *          document containing WF and Term elements
-   * @return StringBuffer containing the Parse tree
+   * @return the sentences of the document
    */
-  private StringBuffer getParse(final KAFDocument kaf) {
-    final StringBuffer parsingDoc = new StringBuffer();
+  private List<List<WF>> getSentences(final KAFDocument kaf) {
+    final long lStartTime = System.nanoTime();
     final List<List<WF>> sentences = kaf.getSentences();
-    for (final List<WF> sentence : sentences) {
-      // get array of token forms from a list of WF objects
-      final String[] tokens = new String[sentence.size()];
-      for (int i = 0; i < sentence.size(); i++) {
-        tokens[i] = sentence.get(i).getForm();
-      }
-      // Constituent Parsing
-      final String sent = getSentenceFromTokens(tokens);
-      final Parse[] parsedSentence = this.parser.parse(sent, 1);
-      if (this.markHeads) {
-        for (final Parse parse : parsedSentence) {
-          this.headFinder.printHeads(parse);
+    this.metrics.record(ParserMetrics.Stage.SENTENCES, lStartTime);
+    return sentences;
+  }
+
+  /**
+   * Parses one sentence and finds the heads if required.
+   * 
+   * @param sentence
+   *          the list of WF objects of the sentence
+   * @param tags
+   *          the tags of the WFs of the document by WF id or null to let the
+   *          parser tag the sentence
+   * @param deadline
+   *          the nano time at which the request runs out of time, or
+   *          {@link ConstituentParser#NO_DEADLINE}
+   * @return the parse trees of the sentence
+   */
+  private ParsedSentence parseSentence(final List<WF> sentence,
+      final Map<String, String> tags, final long deadline) {
+    // get array of token forms from a list of WF objects
+    final String[] tokens = new String[sentence.size()];
+    String[] sentenceTags = tags == null ? null : new String[sentence.size()];
+    for (int i = 0; i < sentence.size(); i++) {
+      tokens[i] = sentence.get(i).getForm();
+      if (sentenceTags != null) {
+        sentenceTags[i] = tags.get(sentence.get(i).getId());
+        // let the parser tag the sentences not fully tagged
+        if (sentenceTags[i] == null) {
+          sentenceTags = null;
         }
       }
-      for (final Parse parsedSent : parsedSentence) {
-        parsedSent.show(parsingDoc);
-        parsingDoc.append("\n");
+    }
+    final Parse[] parses = parseTokens(tokens, sentenceTags, deadline);
+    return new ParsedSentence(sentence, parses, findHeads(parses));
+  }
+
+  /**
+   * Parses one tokenized sentence, unless it is in the persistent cache.
+   * 
+   * @param tokens
+   *          the tokens of the sentence
+   * @param tags
+   *          the part of speech tags of the tokens or null to let the parser
+   *          tag them
+   * @param deadline
+   *          the nano time at which the request runs out of time, or
+   *          {@link ConstituentParser#NO_DEADLINE}
+   * @return the parse trees of the sentence
+   * @throws java.util.concurrent.CancellationException
+   *           if the deadline passes before the sentence is parsed
+   */
+  private Parse[] parseTokens(final String[] tokens, final String[] tags,
+      final long deadline) {
+    ConstituentParser.checkDeadline(deadline);
+    // Constituent Parsing
+    final long lStartTime = System.nanoTime();
+    final String sent = tags == null ? ConstituentParser
+        .getCacheSentence(tokens) : ConstituentParser.getCacheSentence(tokens,
+        tags);
+    Parse[] parsedSentence = this.diskCache == null ? null : this.diskCache
+        .get(sent, 1);
+    if (parsedSentence == null) {
+      parsedSentence = this.parser.parse(tokens, tags, 1, deadline);
+      if (this.diskCache != null
+          && !ConstituentParser.isFallback(parsedSentence[0])) {
+        this.diskCache.put(sent, 1, parsedSentence);
+      }
+    }
+    this.metrics.record(ParserMetrics.Stage.PARSE, lStartTime);
+    this.metrics.recordSentence(tokens.length);
+    return parsedSentence;
+  }
+
+  /**
+   * @param parses
+   *          the parse trees of a sentence
+   * @return the heads of every tree or null if heads are not marked
+   */
+  private int[][] findHeads(final Parse[] parses) {
+    if (!this.markHeads) {
+      return null;
+    }
+    final long lStartTime = System.nanoTime();
+    final int[][] heads = new int[parses.length][];
+    for (int i = 0; i < parses.length; i++) {
+      heads[i] = this.headFinder.findHeads(parses[i]);
+    }
+    this.metrics.record(ParserMetrics.Stage.HEADS, lStartTime);
+    return heads;
+  }
+
+  /**
+   * Waits for a sentence submitted to the sentence executor.
+   * 
+   * @param parsedSentence
+   *          the pending parse
+   * @return the parse trees of the sentence
+   */
+  private static <T> T getParsedSentence(final Future<T> parsedSentence) {
+    try {
+      return parsedSentence.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while parsing", e);
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Cancels the sentences still pending after a failure. Running sentences
+   * are not interrupted, as an interrupt closes the channel of the
+   * persistent cache; they stop at the deadline of the request, if any.
+   * 
+   * @param pendingSentences
+   *          the pending parses, null for those not submitted
+   */
+  private static void cancelAll(
+      final Iterable<? extends Future<?>> pendingSentences) {
+    for (final Future<?> pendingSentence : pendingSentences) {
+      if (pendingSentence != null) {
+        pendingSentence.cancel(false);
       }
     }
-    return parsingDoc;
   }
 
   /**
-   * It takes a KAF document calls to getParse() and outputs the parse tree as
-   * KAF constituents elements.
+   * It takes a KAF document calls to getParse() and adds the parse trees as
+   * KAF constituents elements. The trees are converted directly into
+   * terminal and non-terminal nodes linked to the terms of the document.
    * 
    * @param kaf
    *          document containing WF and Term elements
    */
   public void parseToKAF(final KAFDocument kaf) {
-    final StringBuffer parsingDoc = getParse(kaf);
-    try {
-      kaf.addConstituencyFromParentheses(parsingDoc.toString());
-    } catch (final Exception e) {
-      e.printStackTrace();
+    parseToKAF(kaf, ConstituentParser.NO_DEADLINE);
+  }
+
+  /**
+   * Adds the parse trees of a document as {@link #parseToKAF(KAFDocument)}
+   * until the deadline of the request it belongs to.
+   * 
+   * @param kaf
+   *          document containing WF and Term elements
+   * @param deadline
+   *          the nano time at which the request runs out of time, or
+   *          {@link ConstituentParser#NO_DEADLINE}
+   * @throws java.util.concurrent.CancellationException
+   *           if the deadline passes before the document is parsed
+   */
+  public void parseToKAF(final KAFDocument kaf, final long deadline) {
+    for (final ParsedSentence parsedSentence : getParse(kaf, deadline)) {
+      final long lStartTime = System.nanoTime();
+      for (int i = 0; i < parsedSentence.parses.length; i++) {
+        try {
+          ConstituencyConverter.addTree(kaf, parsedSentence.sentence,
+              parsedSentence.parses[i], parsedSentence.getHeads(i));
+        } catch (final Exception e) {
+          System.err.println("-> ERROR: Could not add the tree of a sentence to the constituency layer: "
+              + e.getMessage() + "!!");
+        }
+      }
+      this.metrics.record(ParserMetrics.Stage.CONSTITUENTS, lStartTime);
     }
   }
 
@@ -149,34 +489,287 @@ public class Annotate {
    * @return parse tree into plain text
    */
   public String parseToOneline(final KAFDocument kaf) {
-    final StringBuffer parsingDoc = getParse(kaf);
+    return parseToOneline(kaf, ConstituentParser.NO_DEADLINE);
+  }
+
+  /**
+   * @param kaf
+   *          document containing WF and Term elements
+   * @param deadline
+   *          the nano time at which the request runs out of time, or
+   *          {@link ConstituentParser#NO_DEADLINE}
+   * @return parse tree into plain text
+   * @throws java.util.concurrent.CancellationException
+   *           if the deadline passes before the document is parsed
+   */
+  public String parseToOneline(final KAFDocument kaf, final long deadline) {
+    final StringWriter parsingDoc = new StringWriter();
+    try {
+      parseToOneline(kaf, parsingDoc, deadline);
+    } catch (final IOException e) {
+      // a StringWriter does not throw
+      throw new UncheckedIOException(e);
+    }
+    return parsingDoc.toString();
+  }
+
+  /**
+   * Parses a document and writes every tree, one per line, as soon as it and
+   * the previous ones are parsed, so that the output does not wait for the
+   * whole document. When sentences are parsed in parallel, at most a few
+   * sentences per thread are parsed ahead of the one being written.
+   * 
+   * @param kaf
+   *          document containing WF and Term elements
+   * @param writer
+   *          the output
+   * @throws IOException
+   *           if the trees cannot be written
+   */
+  public void parseToOneline(final KAFDocument kaf, final Writer writer)
+      throws IOException {
+    parseToOneline(kaf, writer, ConstituentParser.NO_DEADLINE);
+  }
+
+  private void parseToOneline(final KAFDocument kaf, final Writer writer,
+      final long deadline) throws IOException {
+    final PennTreeWriter treeWriter = new PennTreeWriter(writer);
+    final List<List<WF>> sentences = getSentences(kaf);
+    final Map<String, String> tags = getTags(kaf);
+    parseInOrder(sentences.iterator(),
+        sentence -> parseSentence(sentence, tags, deadline),
+        parsedSentence -> writeParsedSentence(parsedSentence, treeWriter));
+    writer.flush();
+  }
+
+  /**
+   * Receives the parsed sentences in order.
+   */
+  private interface ParsedSentenceConsumer<T> {
+    void accept(T parsedSentence) throws IOException;
+  }
+
+  /**
+   * Parses sentences and passes the results in order to the consumer as soon
+   * as they and the previous ones are parsed. When sentences are parsed in
+   * parallel, at most a few sentences per thread are read and parsed ahead of
+   * the one being consumed.
+   * 
+   * @param sentences
+   *          the sentences
+   * @param parse
+   *          parses a sentence
+   * @param consumer
+   *          receives the results
+   * @throws IOException
+   *           if the consumer fails
+   */
+  private <S, T> void parseInOrder(final Iterator<S> sentences,
+      final Function<S, T> parse, final ParsedSentenceConsumer<T> consumer)
+      throws IOException {
+    if (this.sentenceExecutor == null) {
+      while (sentences.hasNext()) {
+        consumer.accept(parse.apply(sentences.next()));
+      }
+      return;
+    }
+    final int maxPending = this.threads * SENTENCES_AHEAD_PER_THREAD;
+    final Deque<Future<T>> pendingSentences = new ArrayDeque<>(maxPending);
+    try {
+      while (sentences.hasNext()) {
+        if (pendingSentences.size() == maxPending) {
+          consumer.accept(getParsedSentence(pendingSentences.poll()));
+        }
+        final S sentence = sentences.next();
+        pendingSentences.add(this.sentenceExecutor.submit(() -> parse
+            .apply(sentence)));
+      }
+      while (!pendingSentences.isEmpty()) {
+        consumer.accept(getParsedSentence(pendingSentences.poll()));
+      }
+    } finally {
+      cancelAll(pendingSentences);
+    }
+  }
+
+  private void writeParsedSentence(final ParsedSentence parsedSentence,
+      final PennTreeWriter treeWriter) throws IOException {
+    final long lStartTime = System.nanoTime();
+    for (int i = 0; i < parsedSentence.parses.length; i++) {
+      treeWriter.write(parsedSentence.parses[i], parsedSentence.getHeads(i));
+      treeWriter.newLine();
+    }
+    this.metrics.record(ParserMetrics.Stage.SERIALIZE, lStartTime);
+  }
+
+  /**
+   * Parses a tokenized sentence. This method can be called concurrently from
+   * several threads.
+   * 
+   * @param tokens
+   *          the tokens of the sentence
+   * @return the parse tree in Penn Treebank oneline format
+   */
+  public String parseToOneline(final String[] tokens) {
+    final StringWriter parsingDoc = new StringWriter();
+    final PennTreeWriter treeWriter = new PennTreeWriter(parsingDoc);
+    final Parse[] parses = parseTokens(tokens, null,
+        ConstituentParser.NO_DEADLINE);
+    final int[][] heads = findHeads(parses);
+    try {
+      for (int i = 0; i < parses.length; i++) {
+        treeWriter.write(parses[i], heads == null ? null : heads[i]);
+      }
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
     return parsingDoc.toString();
   }
 
+  /**
+   * Parses sentences and finds their heads, if heads are marked, to warm up
+   * a newly loaded model. Neither the caches nor the metrics are used.
+   * 
+   * @param sentences
+   *          the tokens of every sentence
+   */
+  public void warmUp(final List<String[]> sentences) {
+    for (final Parse parse : this.parser.warmUp(sentences)) {
+      if (this.markHeads) {
+        this.headFinder.findHeads(parse);
+      }
+    }
+  }
+
+  /**
+   * @return the cache of parse results or null if it is disabled
+   */
+  public ParseCache getParseCache() {
+    return this.parser.getParseCache();
+  }
+
+  /**
+   * @return the persistent cache of parse results or null if it is disabled
+   */
+  public DiskParseCache getDiskCache() {
+    return this.diskCache;
+  }
+
+  /**
+   * @return the key identifying the model in the {@link ModelRegistry}
+   */
+  public String getModelKey() {
+    return this.parser.getModelKey();
+  }
+
+  /**
+   * Releases the model, closes the persistent cache and stops the sentence
+   * threads, if any.
+   */
+  @Override
+  public void close() {
+    if (this.sentenceExecutor != null) {
+      this.sentenceExecutor.shutdown();
+    }
+    if (this.diskCache != null) {
+      this.diskCache.close();
+    }
+    this.parser.close();
+  }
+
+  /**
+   * Parses a file with one tokenized sentence per line, e.g., the yield of a
+   * gold standard treebank, and writes the trees to a file with the *.test
+   * extension for its parseval evaluation, an empty line for every blank
+   * one. Sentences are parsed as in the annotation, using the persistent
+   * cache and recording the metrics. Lines are read and trees written
+   * as they are parsed; with several threads, the sentences are parsed in
+   * parallel and written in the original order.
+   * 
+   * @param inputText
+   *          the file with the tokenized sentences
+   * @throws IOException
+   *           if io error
+   */
   public void parseForTesting(final Path inputText) throws IOException {
-    final StringBuffer parsingDoc = new StringBuffer();
     if (Files.isRegularFile(inputText)) {
-      final List<String> inputTrees = Files
-          .readAllLines(inputText, StandardCharsets.UTF_8);
-      for (final String sentence : inputTrees) {
-        final Parse parsedSentence = this.parser.parse(sentence, 1)[0];
-        parsedSentence.show(parsingDoc);
-        parsingDoc.append("\n");
-      }
-      Path outfile = Files.createFile(Paths.get(inputText.toString() + ".test"));
+      final Path outfile = Paths.get(inputText.toString() + ".test");
       System.err.println("Writing test parse file to " + outfile);
-      Files.write(outfile, parsingDoc.toString().getBytes(StandardCharsets.UTF_8));
+      try (BufferedReader breader = Files.newBufferedReader(inputText,
+          StandardCharsets.UTF_8);
+          BufferedWriter bwriter = Files.newBufferedWriter(outfile,
+              StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW,
+              StandardOpenOption.WRITE)) {
+        final PennTreeWriter treeWriter = new PennTreeWriter(bwriter);
+        parseInOrder(breader.lines().iterator(), sentence -> {
+          final String trimmed = sentence.trim();
+          return trimmed.isEmpty() ? null : parseTokens(trimmed.split("\\s+"),
+              null, ConstituentParser.NO_DEADLINE)[0];
+        }, parse -> {
+          // blank lines are kept as empty lines
+          if (parse != null) {
+            treeWriter.write(parse, null);
+          }
+          treeWriter.newLine();
+        });
+      } catch (final UncheckedIOException e) {
+        throw e.getCause();
+      }
     } else {
       System.out.println("Choose a correct file!");
       System.exit(1);
     }
   }
 
+  /**
+   * Parses the yield of every tree of a gold standard treebank file, one tree
+   * per line, without its empty elements, and scores the labeled brackets of
+   * each parse against the gold tree as soon as it is parsed. With several
+   * threads, the sentences are parsed in parallel.
+   * 
+   * @param goldFile
+   *          the treebank file
+   * @return the scores
+   * @throws IOException
+   *           if io error
+   */
+  public ParsevalScorer parseval(final Path goldFile) throws IOException {
+    final ParsevalScorer scorer = new ParsevalScorer();
+    try (BufferedReader breader = Files.newBufferedReader(goldFile,
+        StandardCharsets.UTF_8)) {
+      final Iterator<String> goldTrees = breader.lines()
+          .filter(line -> !line.trim().isEmpty()).iterator();
+      parseInOrder(goldTrees, goldTree -> {
+        final Parse gold = ParsevalScorer.removeEmptyElements(Parse
+            .parseParse(goldTree));
+        if (gold == null) {
+          return null;
+        }
+        final Parse[] tokens = gold.getTagNodes();
+        final String[] sentence = new String[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+          sentence[i] = tokens[i].getCoveredText();
+        }
+        return new Parse[] { gold,
+            parseTokens(sentence, null, ConstituentParser.NO_DEADLINE)[0] };
+      }, parses -> {
+        if (parses != null) {
+          scorer.add(parses[0], parses[1]);
+        }
+      });
+    } catch (final UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return scorer;
+  }
+
   /**
    * Takes a file containing Penn Treebank oneline annotation and annotates the
    * headwords, saving it to a file with the *.head extension. Optionally also
-   * processes recursively an input directory adding heads only to the files
-   * with the files with the specified extension.
+   * processes recursively an input directory adding heads to every file
+   * except the *.head files. Directories are walked and files processed in
+   * parallel by as many threads as the threads property; every file is read
+   * and written line by line.
    * 
    * @param dir
    *          the input file or directory
@@ -184,50 +777,117 @@ public class Annotate {
    *           if io error
    */
   public void processTreebankWithHeadWords(final Path dir) throws IOException {
-    // process one file
+    if (this.headFinder == null) {
+      System.err.println("-> ERROR: Adding headWords requires a headFinder!!");
+      System.exit(1);
+    }
+    final HeadWordsProgress progress = new HeadWordsProgress();
     if (Files.isRegularFile(dir)) {
-      final List<String> inputTrees = Files.readAllLines(
-          dir, StandardCharsets.UTF_8);
-      Path outfile = Files.createFile(Paths.get(dir.toString() + ".head"));
-      final String outTree = addHeadWordsToTreebank(inputTrees);
-      Files.write(outfile, outTree.getBytes(StandardCharsets.UTF_8));
-      System.err.println(">> Wrote headWords to " + outfile);
+      // process one file
+      addHeadWordsToTreebank(dir, progress);
     } else {
       // recursively process directories
-      try (DirectoryStream<Path> filesDir = Files.newDirectoryStream(dir)) {
-        for (Path element : filesDir) {
-          if (Files.isDirectory(element)) {
-            processTreebankWithHeadWords(element);
-          } else {
-            try {
-              final List<String> inputTrees = Files.readAllLines(element, StandardCharsets.UTF_8);
-              final Path outfile =  Files.createFile(Paths.get(element.toString() + ".head"));
-              final String outTree = addHeadWordsToTreebank(inputTrees);
-              Files.write(outfile, outTree.getBytes(StandardCharsets.UTF_8));
-              System.err.println(">> Wrote headWords to " + outfile);
-            } catch (final FileNotFoundException ignored) {
+      final ForkJoinPool pool = new ForkJoinPool(this.threads);
+      try {
+        pool.invoke(new HeadWordsTask(dir, progress));
+      } finally {
+        pool.shutdown();
+      }
+    }
+    System.err.println(progress);
+  }
+
+  /**
+   * Counts the files and trees annotated with headwords.
+   */
+  private static final class HeadWordsProgress {
+    private final long lStartTime = System.nanoTime();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder trees = new LongAdder();
+
+    @Override
+    public String toString() {
+      final double seconds = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System
+          .nanoTime() - this.lStartTime)) / 1000.0;
+      return String.format(
+          ">> Added headWords to %d files, %d trees in %.1f seconds: %.1f files/s, %.1f trees/s",
+          this.files.sum(), this.trees.sum(), seconds, this.files.sum()
+              / seconds, this.trees.sum() / seconds);
+    }
+  }
+
+  /**
+   * Forks a task per subdirectory and per treebank file of a directory.
+   */
+  private final class HeadWordsTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final Path path;
+    private final HeadWordsProgress progress;
+
+    private HeadWordsTask(final Path path, final HeadWordsProgress progress) {
+      this.path = path;
+      this.progress = progress;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        if (!Files.isDirectory(this.path)) {
+          addHeadWordsToTreebank(this.path, this.progress);
+          return;
+        }
+        final List<HeadWordsTask> tasks = new ArrayList<>();
+        try (DirectoryStream<Path> filesDir = Files.newDirectoryStream(this.path)) {
+          for (final Path element : filesDir) {
+            // skip the output of previous runs and of this one
+            if (Files.isDirectory(element)
+                || !element.getFileName().toString().endsWith(HEAD_EXTENSION)) {
+              tasks.add(new HeadWordsTask(element, this.progress));
             }
           }
         }
+        invokeAll(tasks);
+      } catch (final IOException e) {
+        System.err.println("-> ERROR: Could not add headWords to " + this.path
+            + ": " + e.getMessage() + "!!");
       }
     }
   }
 
   /**
-   * Takes as input a list of parse strings, one for line, and annotates the
-   * headwords
+   * Takes as input a file of parse strings, one for line, and writes them
+   * with the headwords annotated to a file with the *.head extension.
    * 
-   * @param inputTrees the parse strings
-   * @return a list of parse trees with headwords annotated
+   * @param inputFile
+   *          the treebank file
+   * @param progress
+   *          the counters
+   * @throws IOException
+   *           if io error
    */
-  private String addHeadWordsToTreebank(final List<String> inputTrees) {
-    final StringBuffer parsedDoc = new StringBuffer();
-    for (final String parseSent : inputTrees) {
-      final Parse parsedSentence = Parse.parseParse(parseSent);
-      this.headFinder.printHeads(parsedSentence);
-      parsedSentence.show(parsedDoc);
-      parsedDoc.append("\n");
+  private void addHeadWordsToTreebank(final Path inputFile,
+      final HeadWordsProgress progress) throws IOException {
+    final Path outfile = Paths.get(inputFile.toString() + HEAD_EXTENSION);
+    long trees = 0;
+    try (BufferedReader breader = Files.newBufferedReader(inputFile,
+        StandardCharsets.UTF_8);
+        BufferedWriter bwriter = Files.newBufferedWriter(outfile,
+            StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE)) {
+      final PennTreeWriter treeWriter = new PennTreeWriter(bwriter);
+      String parseSent;
+      while ((parseSent = breader.readLine()) != null) {
+        if (!parseSent.trim().isEmpty()) {
+          final Parse parsedSentence = Parse.parseParse(parseSent);
+          treeWriter.write(parsedSentence,
+              this.headFinder.findHeads(parsedSentence));
+          trees++;
+        }
+        treeWriter.newLine();
+      }
     }
-    return parsedDoc.toString();
+    progress.files.increment();
+    progress.trees.add(trees);
+    System.err.println(">> Wrote headWords to " + outfile);
   }
 }
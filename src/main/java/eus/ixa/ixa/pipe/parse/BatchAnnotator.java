@@ -0,0 +1,250 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jdom2.JDOMException;
+
+import ixa.kaflib.KAFDocument;
+
+/**
+ * Parses every NAF document of a directory tree matching a glob with one
+ * model loaded once. Directories are walked and files parsed in parallel in a
+ * work-stealing pool, one document per thread; results are written to the
+ * same relative path in the output directory through a temporary file that
+ * is atomically moved, so that an interrupted run never leaves truncated
+ * documents behind. Documents in other languages than the one of the model
+ * are skipped, and an output directory inside the input directory is not
+ * walked.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+public class BatchAnnotator {
+
+  private final Annotate annotator;
+  private final String model;
+  private final String language;
+  private final String outputFormat;
+  private final String version;
+  private final Path inputDir;
+  private final Path outputDir;
+  /**
+   * The output directory as compared with the directories walked.
+   */
+  private final Path normalizedOutputDir;
+  private final PathMatcher matcher;
+  /**
+   * Whether the glob is matched against the relative path or the file name.
+   */
+  private final boolean matchPath;
+  private final ForkJoinPool pool;
+
+  private final LongAdder documents = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder skipped = new LongAdder();
+  private final LongAdder sentences = new LongAdder();
+  private final LongAdder tokens = new LongAdder();
+
+  /**
+   * @param properties
+   *          the annotation properties plus the input and output directories,
+   *          the glob and the number of threads
+   * @param version
+   *          the version written in the linguistic processor of the documents
+   */
+  public BatchAnnotator(final Properties properties, final String version) {
+    this.model = properties.getProperty("model");
+    this.language = properties.getProperty("language");
+    this.outputFormat = properties.getProperty("outputFormat");
+    this.version = version;
+    this.inputDir = Paths.get(properties.getProperty("inputDir"));
+    this.outputDir = Paths.get(properties.getProperty("outputDir"));
+    this.normalizedOutputDir = this.outputDir.toAbsolutePath().normalize();
+    final String glob = properties.getProperty("glob");
+    this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+    this.matchPath = glob.contains("/");
+    // documents, not sentences, are parsed in parallel
+    final Properties annotateProperties = new Properties();
+    annotateProperties.putAll(properties);
+    annotateProperties.setProperty("threads", "1");
+    this.annotator = new Annotate(annotateProperties);
+    this.pool = new ForkJoinPool(Integer.parseInt(properties.getProperty(
+        "threads", Flags.DEFAULT_THREADS)));
+  }
+
+  /**
+   * Parses the documents and prints a throughput summary.
+   *
+   * @throws IOException
+   *           if the input directory cannot be read
+   */
+  public void annotate() throws IOException {
+    if (!Files.isDirectory(this.inputDir)) {
+      throw new IOException("Input directory " + this.inputDir
+          + " does not exist");
+    }
+    Files.createDirectories(this.outputDir);
+    final long lStartTime = System.nanoTime();
+    this.pool.invoke(new DirectoryTask(this.inputDir));
+    this.pool.shutdown();
+    this.annotator.close();
+    final double seconds = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - lStartTime)) / 1000.0;
+    System.err.println(String.format(
+        "-> Parsed %d documents (%d failed, %d skipped), %d sentences and %d tokens in %.1f seconds: "
+            + "%.1f docs/s, %.1f sentences/s, %.1f tokens/s",
+        this.documents.sum(), this.failures.sum(), this.skipped.sum(),
+        this.sentences.sum(),
+        this.tokens.sum(), seconds, this.documents.sum() / seconds,
+        this.sentences.sum() / seconds, this.tokens.sum() / seconds));
+  }
+
+  /**
+   * Forks a task per subdirectory and per matching file.
+   */
+  private final class DirectoryTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final Path dir;
+
+    private DirectoryTask(final Path dir) {
+      this.dir = dir;
+    }
+
+    @Override
+    protected void compute() {
+      final List<RecursiveAction> tasks = new ArrayList<>();
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir)) {
+        for (final Path file : files) {
+          if (Files.isDirectory(file)) {
+            if (!file.toAbsolutePath().normalize().equals(
+                BatchAnnotator.this.normalizedOutputDir)) {
+              tasks.add(new DirectoryTask(file));
+            }
+          } else if (matches(file)) {
+            tasks.add(new FileTask(file));
+          }
+        }
+      } catch (final IOException e) {
+        System.err.println("-> ERROR: Could not read directory " + this.dir
+            + ": " + e.getMessage() + "!!");
+      }
+      invokeAll(tasks);
+    }
+  }
+
+  private final class FileTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final Path file;
+
+    private FileTask(final Path file) {
+      this.file = file;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        if (annotate(this.file)) {
+          BatchAnnotator.this.documents.increment();
+        } else {
+          BatchAnnotator.this.skipped.increment();
+        }
+      } catch (final IOException | JDOMException | RuntimeException e) {
+        BatchAnnotator.this.failures.increment();
+        System.err.println("-> ERROR: Could not parse " + this.file + ": "
+            + e.getMessage() + "!!");
+      }
+    }
+  }
+
+  private boolean matches(final Path file) {
+    return this.matcher.matches(this.matchPath ? this.inputDir
+        .relativize(file) : file.getFileName());
+  }
+
+  /**
+   * Parses one document and atomically writes the result.
+   *
+   * @param file
+   *          the NAF document
+   * @return false if the document was skipped because of its language
+   * @throws IOException
+   *           if io error
+   * @throws JDOMException
+   *           if the document is not well formed
+   */
+  private boolean annotate(final Path file) throws IOException,
+      JDOMException {
+    final KAFDocument kaf;
+    try (BufferedReader breader = Files.newBufferedReader(file,
+        StandardCharsets.UTF_8)) {
+      kaf = KAFDocument.createFromStream(breader);
+    }
+    if (!kaf.getLang().equalsIgnoreCase(this.language)) {
+      System.err.println("-> WARNING: Skipping " + file
+          + ": the language of the document is " + kaf.getLang() + ", not "
+          + this.language + "!!");
+      return false;
+    }
+    final KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(
+        "constituency", "ixa-pipe-parse-" + Paths.get(this.model).getFileName(),
+        this.version);
+    newLp.setBeginTimestamp();
+    final Path outFile = this.outputDir.resolve(this.inputDir.relativize(file)
+        .toString());
+    Files.createDirectories(outFile.getParent());
+    final Path tmpFile = Files.createTempFile(outFile.getParent(),
+        outFile.getFileName().toString(), ".tmp");
+    try {
+      try (BufferedWriter bwriter = Files.newBufferedWriter(tmpFile,
+          StandardCharsets.UTF_8)) {
+        if (this.outputFormat.equalsIgnoreCase("oneline")) {
+          this.annotator.parseToOneline(kaf, bwriter);
+        } else {
+          this.annotator.parseToKAF(kaf);
+          newLp.setEndTimestamp();
+          bwriter.write(kaf.toString());
+        }
+      }
+      Files.move(tmpFile, outFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmpFile);
+    }
+    this.sentences.add(kaf.getSentences().size());
+    this.tokens.add(kaf.getWFs().size());
+    return true;
+  }
+}
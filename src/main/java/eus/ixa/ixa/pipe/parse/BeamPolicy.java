@@ -0,0 +1,241 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import opennlp.tools.parser.AbstractBottomUpParser;
+
+/**
+ * Chooses the beam size and advance percentage of the parser for every
+ * sentence according to its number of tokens. A policy is a list of steps,
+ * {@code maxTokens:beamSize[:advancePercentage]} separated by commas, e.g.,
+ * {@code 10:5,25:10,*:20}: sentences up to 10 tokens are parsed with a beam
+ * of 5, up to 25 with a beam of 10 and the rest with a beam of 20. A sentence
+ * whose parse comes back incomplete is parsed again with the next wider beam,
+ * up to the beam of the last step.
+ * <p>
+ * The retries with a wider beam share a global budget: they can be at most the
+ * given share of the sentences parsed so far, so that documents full of
+ * sentences coming back incomplete do not multiply the parsing time. Once the
+ * budget is spent, incomplete parses are kept until further sentences make room
+ * for more retries.
+ * <p>
+ * The {@code fixed} policy uses the OpenNLP defaults for every sentence and
+ * the {@code adaptive} policy the steps of the language in the
+ * beam-policies.properties resource.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+final class BeamPolicy {
+
+  static final String FIXED = "fixed";
+  static final String ADAPTIVE = "adaptive";
+  private static final String POLICIES_RESOURCE = "/beam-policies.properties";
+
+  private final String spec;
+  private final int[] maxTokens;
+  private final int[] beamSizes;
+  private final double[] advancePercentages;
+  /**
+   * The share of the sentences parsed that can be parsed again with a wider
+   * beam.
+   */
+  private final double retryBudget;
+  private final LongAdder sentences = new LongAdder();
+  private final AtomicLong retries = new AtomicLong();
+
+  private BeamPolicy(final String spec, final int[] maxTokens,
+      final int[] beamSizes, final double[] advancePercentages,
+      final double retryBudget) {
+    this.spec = spec;
+    this.maxTokens = maxTokens;
+    this.beamSizes = beamSizes;
+    this.advancePercentages = advancePercentages;
+    this.retryBudget = retryBudget;
+  }
+
+  /**
+   * @param policy
+   *          {@link #FIXED}, {@link #ADAPTIVE} or a list of steps
+   * @param language
+   *          the language of the model
+   * @param retryBudget
+   *          the share of the sentences that can be parsed again with a wider
+   *          beam, e.g., 0.1 for one retry every ten sentences
+   * @return the policy
+   * @throws IllegalArgumentException
+   *           if the policy is not well formed, there is no adaptive policy
+   *           for the language or the budget is negative
+   */
+  static BeamPolicy get(final String policy, final String language,
+      final double retryBudget) {
+    if (!(retryBudget >= 0)) {
+      throw new IllegalArgumentException("The beam retry budget cannot be negative: "
+          + retryBudget);
+    }
+    if (policy == null || policy.equalsIgnoreCase(FIXED)) {
+      return new BeamPolicy(FIXED, new int[] { Integer.MAX_VALUE },
+          new int[] { AbstractBottomUpParser.defaultBeamSize },
+          new double[] { AbstractBottomUpParser.defaultAdvancePercentage },
+          retryBudget);
+    }
+    if (policy.equalsIgnoreCase(ADAPTIVE)) {
+      final String steps = loadPolicies().getProperty(language);
+      if (steps == null) {
+        throw new IllegalArgumentException("No adaptive beam policy for language "
+            + language);
+      }
+      return parse(steps, retryBudget);
+    }
+    return parse(policy, retryBudget);
+  }
+
+  private static Properties loadPolicies() {
+    final Properties policies = new Properties();
+    try (InputStream is = BeamPolicy.class
+        .getResourceAsStream(POLICIES_RESOURCE)) {
+      policies.load(is);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return policies;
+  }
+
+  private static BeamPolicy parse(final String spec,
+      final double retryBudget) {
+    final List<String[]> steps = new ArrayList<>();
+    for (final String step : spec.split(",")) {
+      steps.add(step.trim().split(":"));
+    }
+    final int[] maxTokens = new int[steps.size()];
+    final int[] beamSizes = new int[steps.size()];
+    final double[] advancePercentages = new double[steps.size()];
+    try {
+      for (int i = 0; i < steps.size(); i++) {
+        final String[] step = steps.get(i);
+        if (step.length < 2 || step.length > 3) {
+          throw new IllegalArgumentException("Beam policy steps are maxTokens:beamSize[:advancePercentage]: "
+              + spec);
+        }
+        maxTokens[i] = step[0].equals("*") ? Integer.MAX_VALUE : Integer
+            .parseInt(step[0]);
+        beamSizes[i] = Integer.parseInt(step[1]);
+        advancePercentages[i] = step.length == 3 ? Double.parseDouble(step[2])
+            : AbstractBottomUpParser.defaultAdvancePercentage;
+        if (beamSizes[i] < 1 || i > 0 && maxTokens[i] <= maxTokens[i - 1]) {
+          throw new IllegalArgumentException("Beam policy steps must have a positive beam and increasing maxTokens: "
+              + spec);
+        }
+      }
+    } catch (final NumberFormatException e) {
+      throw new IllegalArgumentException("Beam policy not well formed: " + spec,
+          e);
+    }
+    if (maxTokens[maxTokens.length - 1] != Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("The last beam policy step must be *: "
+          + spec);
+    }
+    return new BeamPolicy(spec, maxTokens, beamSizes, advancePercentages,
+        retryBudget);
+  }
+
+  /**
+   * @return the number of steps
+   */
+  int size() {
+    return this.maxTokens.length;
+  }
+
+  /**
+   * @param tokens
+   *          the number of tokens of a sentence
+   * @return the step of the sentence
+   */
+  int getStep(final int tokens) {
+    int step = 0;
+    while (tokens > this.maxTokens[step]) {
+      step++;
+    }
+    return step;
+  }
+
+  /**
+   * Counts a sentence parsed, making room in the retry budget.
+   */
+  void countSentence() {
+    this.sentences.increment();
+  }
+
+  /**
+   * Takes a retry from the budget if there is a wider step.
+   *
+   * @param step
+   *          a step
+   * @return the next step with a wider beam or -1 if there is none or the
+   *         retry budget is spent
+   */
+  int getWiderStep(final int step) {
+    for (int i = step + 1; i < this.beamSizes.length; i++) {
+      if (this.beamSizes[i] > this.beamSizes[step]) {
+        return takeRetry() ? i : -1;
+      }
+    }
+    return -1;
+  }
+
+  private boolean takeRetry() {
+    final double allowed = Math.ceil(this.retryBudget * this.sentences.sum());
+    while (true) {
+      final long taken = this.retries.get();
+      if (taken >= allowed) {
+        return false;
+      }
+      if (this.retries.compareAndSet(taken, taken + 1)) {
+        return true;
+      }
+    }
+  }
+
+  int getBeamSize(final int step) {
+    return this.beamSizes[step];
+  }
+
+  double getAdvancePercentage(final int step) {
+    return this.advancePercentages[step];
+  }
+
+  /**
+   * @return whether every sentence is parsed with the OpenNLP defaults
+   */
+  boolean isFixed() {
+    return FIXED.equals(this.spec);
+  }
+
+  @Override
+  public String toString() {
+    return this.spec;
+  }
+}
@@ -18,6 +18,7 @@ package eus.ixa.ixa.pipe.parse;
 
 import ixa.kaflib.KAFDocument;
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.*;
 import org.jdom2.JDOMException;
 
@@ -27,7 +28,17 @@ import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This is the main class of ixa-pipe-parse a constituent shift-reduce parser
@@ -56,6 +67,17 @@ public class CLI {
   private final String commit = CLI.class.getPackage()
       .getSpecificationVersion();
 
+  /**
+   * Times a request answered as busy by the server is sent again.
+   */
+  private static final int MAX_BUSY_RETRIES = 10;
+  /**
+   * Milliseconds before the first retry of a busy request, doubled for every
+   * further retry up to {@link #MAX_BUSY_BACKOFF}.
+   */
+  private static final long BUSY_BACKOFF = 50;
+  private static final long MAX_BUSY_BACKOFF = 2000;
+
   Namespace parsedArguments = null;
 
   // create Argument Parser
@@ -83,6 +105,14 @@ public class CLI {
   * Sends queries to the serverParser for annotation.
   */
  private Subparser clientParser;
+  /**
+   * The parser that manages the batch sub-command.
+   */
+  private final Subparser batchParser;
+  /**
+   * The parser that manages the convert-model sub-command.
+   */
+  private final Subparser convertModelParser;
 
   /**
    * Construct a CLI object with the three sub-parsers to manage the command
@@ -98,10 +128,16 @@ public class CLI {
     loadTrainingParameters();
     this.evalParser = subParsers.addParser("eval").help("Evaluation CLI");
     loadEvalParameters();
-    serverParser = subParsers.addParser("server").help("Start TCP socket server");
+    serverParser = subParsers.addParser("server").help("Start TCP socket or HTTP server");
     loadServerParameters();
     clientParser = subParsers.addParser("client").help("Send queries to the TCP socket server");
     loadClientParameters();
+    this.batchParser = subParsers.addParser("batch")
+        .help("Parse a directory of NAF documents");
+    loadBatchParameters();
+    this.convertModelParser = subParsers.addParser("convert-model")
+        .help("Convert a model into a memory-mapped snapshot");
+    loadConvertModelParameters();
   }
 
   public static void main(final String[] args) throws IOException,
@@ -142,11 +178,17 @@ public class CLI {
         case "client":
             client();
             break;
+        case "batch":
+            batch();
+            break;
+        case "convert-model":
+            convertModel();
+            break;
         }
     } catch (final ArgumentParserException e) {
       this.argParser.handleError(e);
       System.out.println("Run java -jar target/ixa-pipe-parse-" + this.version
-          + ".jar" + " (parse|train|eval|server|client) -help for details");
+          + ".jar" + " (parse|batch|train|eval|server|client|convert-model) -help for details");
       System.exit(1);
     }
   }
@@ -163,6 +205,7 @@ public class CLI {
     final String headFinderOption = this.parsedArguments
         .getString("headFinder");
     final String outputFormat = this.parsedArguments.getString("outputFormat");
+    final String threads = this.parsedArguments.getString("threads");
     // language parameter
     String lang;
     if (this.parsedArguments.getString("language") != null) {
@@ -175,26 +218,74 @@ public class CLI {
       lang = kaf.getLang();
     }
     final Properties properties = setAnnotateProperties(model, lang,
-        headFinderOption);
+        headFinderOption, threads);
+    setParsingProperties(properties);
     final KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(
         "constituency",
         "ixa-pipe-parse-" + Paths.get(model).getFileName(), this.version
             + "-" + this.commit);
     newLp.setBeginTimestamp();
     final Annotate annotator = new Annotate(properties);
-    String kafToString;
     if (outputFormat.equalsIgnoreCase("oneline")) {
-      kafToString = annotator.parseToOneline(kaf);
+      // trees are written as they are parsed
+      annotator.parseToOneline(kaf, bwriter);
     } else {
       annotator.parseToKAF(kaf);
       newLp.setEndTimestamp();
-      kafToString = kaf.toString();
+      bwriter.write(kaf.toString());
+    }
+    if (annotator.getParseCache() != null) {
+      System.err.println("-> Parse cache: " + annotator.getParseCache());
     }
-    bwriter.write(kafToString);
+    if (annotator.getDiskCache() != null) {
+      System.err.println("-> Disk parse cache: " + annotator.getDiskCache());
+    }
+    annotator.close();
     bwriter.close();
     breader.close();
   }
 
+  /**
+   * Parses every NAF document of a directory with the model loaded once.
+   *
+   * @throws IOException
+   *           if the input directory cannot be read
+   */
+  public final void batch() throws IOException {
+    final Properties properties = setAnnotateProperties(
+        this.parsedArguments.getString("model"),
+        this.parsedArguments.getString("language"),
+        this.parsedArguments.getString("headFinder"),
+        this.parsedArguments.getString("threads"));
+    properties.setProperty("outputFormat",
+        this.parsedArguments.getString("outputFormat"));
+    properties.setProperty("inputDir", this.parsedArguments.getString("input"));
+    properties.setProperty("outputDir",
+        this.parsedArguments.getString("output"));
+    properties.setProperty("glob", this.parsedArguments.getString("glob"));
+    setParsingProperties(properties);
+    final BatchAnnotator batchAnnotator = new BatchAnnotator(properties,
+        this.version + "-" + this.commit);
+    batchAnnotator.annotate();
+  }
+
+  /**
+   * Converts a model into a snapshot loaded by memory-mapping it.
+   *
+   * @throws IOException
+   *           if the model cannot be read or the snapshot written
+   */
+  public final void convertModel() throws IOException {
+    final Path model = Paths.get(this.parsedArguments.getString("model"));
+    final Path output = Paths.get(this.parsedArguments.getString("output"));
+    final long lStartTime = System.nanoTime();
+    ModelSnapshot.convert(model, output);
+    final long difference = (System.nanoTime() - lStartTime) / 1000000;
+    System.err.println("ixa-pipe-parse model " + model.getFileName()
+        + " converted to " + output + " in: " + difference
+        + " milliseconds ... [DONE]");
+  }
+
   public final void train() {
     System.err.println("Not yet ready!");
   }
@@ -206,32 +297,62 @@ public class CLI {
     final String headFinderOption = this.parsedArguments
         .getString("headFinder");
     final Properties properties = setEvaluateProperties(model, lang,
-        headFinderOption);
+        headFinderOption, this.parsedArguments.getString("threads"));
+    setParsingProperties(properties);
     final Annotate annotator = new Annotate(properties);
-    // special option to process treebank files adding headword marks
-    if (this.parsedArguments.getString("addHeads") != null) {
-      Path inputTree = Paths.get(parsedArguments.getString("addHeads"));
-      annotator.processTreebankWithHeadWords(inputTree);
-    } else if (this.parsedArguments.get("test") != null) {
-      Path inputTree = Paths.get(parsedArguments.getString("test"));
-      annotator.parseForTesting(inputTree);
+    try {
+      // special option to process treebank files adding headword marks
+      if (this.parsedArguments.getString("addHeads") != null) {
+        Path inputTree = Paths.get(parsedArguments.getString("addHeads"));
+        annotator.processTreebankWithHeadWords(inputTree);
+      } else if (this.parsedArguments.get("test") != null) {
+        Path inputTree = Paths.get(parsedArguments.getString("test"));
+        annotator.parseForTesting(inputTree);
+      } else if (this.parsedArguments.get("parseval") != null) {
+        Path goldTree = Paths.get(parsedArguments.getString("parseval"));
+        System.out.print(annotator.parseval(goldTree));
+      }
+    } finally {
+      annotator.close();
     }
   }
   
   /**
-   * Set up the TCP socket for annotation.
+   * Set up the TCP socket or the HTTP server for annotation.
+   *
+   * @throws IOException
+   *           if the HTTP server cannot be started
    */
-  public final void server() {
+  public final void server() throws IOException {
 
     // load parameters into a properties
     String port = parsedArguments.getString("port");
     String model = parsedArguments.getString("model");
     String headFinder = parsedArguments.getString("headFinder");
     String outputFormat = parsedArguments.getString("outputFormat");
+    String threads = parsedArguments.getString("threads");
+    String workers = parsedArguments.getString("workers");
+    String queueSize = parsedArguments.getString("queueSize");
+    String maxConnections = parsedArguments.getString("maxConnections");
+    String deadline = parsedArguments.getString("deadline");
+    String maxInFlight = parsedArguments.getString("maxInFlight");
+    String writeTimeout = parsedArguments.getString("writeTimeout");
     // language parameter
     String lang = parsedArguments.getString("language");
-    Properties serverproperties = setServerProperties(port, model, lang, headFinder, outputFormat);
-    new ConstituentParserServer(serverproperties);
+    Properties serverproperties = setServerProperties(port, model, lang, headFinder, outputFormat, threads);
+    serverproperties.setProperty("workers", workers);
+    serverproperties.setProperty("queueSize", queueSize);
+    serverproperties.setProperty("maxConnections", maxConnections);
+    serverproperties.setProperty("deadline", deadline);
+    serverproperties.setProperty("maxInFlight", maxInFlight);
+    serverproperties.setProperty("writeTimeout", writeTimeout);
+    setParsingProperties(serverproperties);
+    serverproperties.setProperty("watchModel", Boolean.toString(parsedArguments.getBoolean("watchModel")));
+    if (parsedArguments.getBoolean("http")) {
+      new ConstituentParserHttpServer(serverproperties);
+    } else {
+      new ConstituentParserServer(serverproperties);
+    }
   }
   
   /**
@@ -241,6 +362,11 @@ public class CLI {
 
     String host = parsedArguments.getString("host");
     String port = parsedArguments.getString("port");
+    String deadline = parsedArguments.getString("deadline");
+    if (parsedArguments.getBoolean("framed")) {
+      framedClient(host, port, deadline, parsedArguments.getString("maxInFlight"));
+      return;
+    }
     try (Socket socketClient = new Socket(host, Integer.parseInt(port));
          BufferedReader inFromUser = new BufferedReader(new InputStreamReader(
             System.in, StandardCharsets.UTF_8));
@@ -253,6 +379,10 @@ public class CLI {
 
       // send data to server socket
       StringBuilder inText = new StringBuilder();
+      if (deadline != null) {
+        inText.append(ConstituentParserServer.DEADLINE_START).append(deadline)
+            .append(ConstituentParserServer.DEADLINE_END).append("\n");
+      }
       String line;
       while ((line = inFromUser.readLine()) != null) {
         inText.append(line).append("\n");
@@ -283,6 +413,162 @@ public class CLI {
   }
 
 
+  /**
+   * The client for the framed protocol. The documents read from standard
+   * input, each ended by {@code <ENDOFDOCUMENT>} or {@code </NAF>}, are sent
+   * pipelined over one connection and the annotations are written in the
+   * order of the input. At most maxInFlight requests are sent without their
+   * answer, so that the queue of the server is not flooded, and requests
+   * answered as busy are sent again after a backoff.
+   *
+   * @param host the host of the server
+   * @param port the port of the server
+   * @param deadline the deadline of every request in milliseconds, or null
+   * @param maxInFlight the maximum number of requests waiting for an answer
+   */
+  private void framedClient(String host, String port, String deadline, String maxInFlight) {
+    int window = Integer.parseInt(maxInFlight);
+    ExecutorService sender = Executors.newSingleThreadExecutor();
+    ScheduledExecutorService retrier = Executors.newSingleThreadScheduledExecutor();
+    try (Socket socketClient = new Socket(host, Integer.parseInt(port));
+         BufferedReader inFromUser = new BufferedReader(new InputStreamReader(
+            System.in, StandardCharsets.UTF_8));
+         BufferedWriter outToUser = new BufferedWriter(new OutputStreamWriter(
+            System.out, StandardCharsets.UTF_8));
+         DataOutputStream outToServer = new DataOutputStream(new BufferedOutputStream(
+            socketClient.getOutputStream()));
+         DataInputStream inFromServer = new DataInputStream(new BufferedInputStream(
+            socketClient.getInputStream()))) {
+
+      int requestDeadline = deadline == null ? 0 : Integer.parseInt(deadline);
+      // a permit is held by every request until its final answer
+      Semaphore inFlight = new Semaphore(window);
+      Map<Integer, FramedProtocol.Request> unanswered = new ConcurrentHashMap<>();
+      // send from another thread so that responses are read while sending
+      Future<Integer> sent = sender.submit(() -> {
+        int requestId = 0;
+        try {
+          synchronized (outToServer) {
+            FramedProtocol.writeMagic(outToServer);
+          }
+          StringBuilder document = new StringBuilder();
+          String line;
+          while ((line = inFromUser.readLine()) != null) {
+            if (!line.equals("<ENDOFDOCUMENT>")) {
+              document.append(line).append("\n");
+            }
+            if (line.equals("<ENDOFDOCUMENT>") || line.equals("</NAF>")) {
+              // an <ENDOFDOCUMENT> line after </NAF> ends no new document
+              if (document.toString().trim().length() > 0) {
+                sendFrame(outToServer, inFlight, unanswered, requestId++, requestDeadline, document);
+              } else {
+                document.setLength(0);
+              }
+            }
+          }
+          if (document.toString().trim().length() > 0) {
+            sendFrame(outToServer, inFlight, unanswered, requestId++, requestDeadline, document);
+          }
+          synchronized (outToServer) {
+            outToServer.flush();
+          }
+          // every permit is back once every request has been answered
+          inFlight.acquire(window);
+          return requestId;
+        } finally {
+          socketClient.shutdownOutput();
+        }
+      });
+
+      // write the responses in request order as soon as possible
+      Map<Integer, FramedProtocol.Response> pending = new HashMap<>();
+      Map<Integer, Integer> retries = new HashMap<>();
+      int nextId = 0;
+      FramedProtocol.Response response;
+      while ((response = FramedProtocol.readResponse(inFromServer)) != null) {
+        int attempt = retries.getOrDefault(response.requestId, 0);
+        if (response.status == FramedProtocol.STATUS_BUSY && attempt < MAX_BUSY_RETRIES) {
+          retries.put(response.requestId, attempt + 1);
+          FramedProtocol.Request request = unanswered.get(response.requestId);
+          retrier.schedule(() -> resendFrame(outToServer, request),
+              Math.min(BUSY_BACKOFF << attempt, MAX_BUSY_BACKOFF), TimeUnit.MILLISECONDS);
+          continue;
+        }
+        retries.remove(response.requestId);
+        unanswered.remove(response.requestId);
+        inFlight.release();
+        pending.put(response.requestId, response);
+        while ((response = pending.remove(nextId)) != null) {
+          String annotation = new String(response.payload, StandardCharsets.UTF_8);
+          if (response.status == FramedProtocol.STATUS_OK) {
+            outToUser.write(annotation);
+          } else {
+            System.err.println("-> Request " + response.requestId + ": " + annotation.trim());
+          }
+          nextId++;
+        }
+      }
+      if (!sent.isDone()) {
+        sent.cancel(true);
+        System.err.println("ERROR: The server closed the connection with "
+            + unanswered.size() + " requests unanswered!");
+      } else if (nextId != sent.get()) {
+        System.err.println("ERROR: Received " + nextId + " responses for " + sent.get() + " documents!");
+      }
+    } catch (UnknownHostException e) {
+      System.err.println("ERROR: Unknown hostname or IP address!");
+      System.exit(1);
+    } catch (NumberFormatException e) {
+      System.err.println("Port number not correct!");
+      System.exit(1);
+    } catch (IOException | ExecutionException e) {
+      e.printStackTrace();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      sender.shutdownNow();
+      retrier.shutdownNow();
+    }
+  }
+
+  /**
+   * Sends a document as a request frame once a request can be in flight. The
+   * frames buffered are flushed before waiting, so that the server gets the
+   * requests whose answers release the permits.
+   */
+  private static void sendFrame(DataOutputStream outToServer, Semaphore inFlight,
+      Map<Integer, FramedProtocol.Request> unanswered, int requestId, int deadline,
+      StringBuilder document) throws IOException, InterruptedException {
+    FramedProtocol.Request request = new FramedProtocol.Request(requestId, deadline,
+        document.toString().getBytes(StandardCharsets.UTF_8));
+    document.setLength(0);
+    if (!inFlight.tryAcquire()) {
+      synchronized (outToServer) {
+        outToServer.flush();
+      }
+      inFlight.acquire();
+    }
+    unanswered.put(requestId, request);
+    synchronized (outToServer) {
+      FramedProtocol.writeRequest(outToServer, request);
+    }
+  }
+
+  /**
+   * Sends again a request answered as busy.
+   */
+  private static void resendFrame(DataOutputStream outToServer, FramedProtocol.Request request) {
+    try {
+      synchronized (outToServer) {
+        FramedProtocol.writeRequest(outToServer, request);
+        outToServer.flush();
+      }
+    } catch (IOException e) {
+      System.err.println("-> Could not send request " + request.requestId + " again: "
+          + e.getMessage());
+    }
+  }
+
   public void loadAnnotateParameters() {
     this.annotateParser.addArgument("-m", "--model").required(true)
         .help("Choose parsing model.\n");
@@ -299,6 +585,10 @@ public class CLI {
     this.annotateParser.addArgument("-o", "--outputFormat")
         .choices("oneline", "naf").setDefault(Flags.DEFAULT_OUTPUT_FORMAT)
         .required(false).help("Choose outputFormat; it defaults to NAF.\n");
+    this.annotateParser.addArgument("-t", "--threads")
+        .setDefault(Flags.DEFAULT_THREADS).required(false)
+        .help("Number of threads to parse the sentences of the document in parallel; it defaults to 1.\n");
+    addParsingOptions(this.annotateParser);
   }
 
   /**
@@ -325,6 +615,15 @@ public class CLI {
         .addArgument("--test")
         .help(
             "Takes a file as argument containing the tokenized text of a gold standard Penn Treebank file to process it; It produces a test file for its parseval evaluation with EVALB.\n");
+    this.evalParser
+        .addArgument("--parseval")
+        .help(
+            "Takes a file as argument containing a gold standard Penn Treebank file (one tree per line), parses the yield of every tree and prints labeled bracket precision, recall and F1 by sentence length and the parsing throughput.\n");
+    this.evalParser.addArgument("-t", "--threads")
+        .setDefault(Integer.toString(Runtime.getRuntime().availableProcessors()))
+        .required(false)
+        .help("Number of threads parsing the test or parseval sentences, or adding headWords to the treebank files, in parallel; it defaults to the number of cores.\n");
+    addParsingOptions(this.evalParser);
   }
   
 
@@ -351,6 +650,34 @@ public class CLI {
     serverParser.addArgument("-o", "--outputFormat").choices("oneline", "naf")
         .setDefault(Flags.DEFAULT_OUTPUT_FORMAT).required(false)
         .help("Choose outputFormat; it defaults to NAF.\n");
+    serverParser.addArgument("-t", "--threads")
+        .setDefault(Flags.DEFAULT_THREADS).required(false)
+        .help("Number of threads to parse the sentences of each document in parallel; it defaults to 1.\n");
+    serverParser.addArgument("--workers")
+        .setDefault(Flags.DEFAULT_WORKERS).required(false)
+        .help("Number of worker threads annotating client requests concurrently.\n");
+    serverParser.addArgument("--queueSize")
+        .setDefault(Flags.DEFAULT_QUEUE_SIZE).required(false)
+        .help("Maximum number of requests waiting for a worker; further requests are answered as busy.\n");
+    serverParser.addArgument("--maxConnections")
+        .setDefault(Flags.DEFAULT_MAX_CONNECTIONS).required(false)
+        .help("Maximum number of open TCP connections; further connections are closed right away.\n");
+    serverParser.addArgument("--http")
+        .action(Arguments.storeTrue())
+        .help("Start an HTTP server with the POST /parse and /parse/batch endpoints instead of the TCP socket server.\n");
+    serverParser.addArgument("--watchModel")
+        .action(Arguments.storeTrue())
+        .help("Reload the model without stopping the server whenever the model file changes.\n");
+    serverParser.addArgument("--deadline")
+        .setDefault(Flags.DEFAULT_DEADLINE).required(false)
+        .help("Default deadline of each request in milliseconds; 0 means no deadline.\n");
+    serverParser.addArgument("--maxInFlight")
+        .setDefault(Flags.DEFAULT_MAX_IN_FLIGHT).required(false)
+        .help("Maximum number of requests of a framed connection in flight; further requests are not read until one is answered.\n");
+    serverParser.addArgument("--writeTimeout")
+        .setDefault(Flags.DEFAULT_WRITE_TIMEOUT).required(false)
+        .help("Time in milliseconds to write a response before closing a framed connection that does not read them.\n");
+    addParsingOptions(serverParser);
   }
   
   private void loadClientParameters() {
@@ -362,33 +689,153 @@ public class CLI {
         .required(false)
         .setDefault(Flags.DEFAULT_HOSTNAME)
         .help("Hostname or IP where the TCP server is running.\n");
+    clientParser.addArgument("--deadline")
+        .required(false)
+        .help("Deadline of the request in milliseconds; it overrides the default of the server.\n");
+    clientParser.addArgument("--framed")
+        .action(Arguments.storeTrue())
+        .help("Use the framed protocol to send every document of the standard input over one connection.\n");
+    clientParser.addArgument("--maxInFlight")
+        .setDefault(Flags.DEFAULT_MAX_IN_FLIGHT).required(false)
+        .help("Maximum number of documents sent with the framed protocol before their answers; documents answered as busy are sent again.\n");
+  }
+
+  private void loadBatchParameters() {
+    this.batchParser.addArgument("-m", "--model").required(true)
+        .help("Choose parsing model.\n");
+    this.batchParser.addArgument("-l", "--language")
+        .choices("ca", "en", "es", "it").required(true)
+        .help("Choose language; documents in other languages are skipped.\n");
+    this.batchParser.addArgument("-i", "--input").required(true)
+        .help("Input directory containing the NAF documents.\n");
+    this.batchParser.addArgument("-d", "--output").required(true)
+        .help("Output directory; every document is written to its relative path in it.\n");
+    this.batchParser.addArgument("--glob")
+        .setDefault(Flags.DEFAULT_BATCH_GLOB).required(false)
+        .help("Glob matching the file names, or the relative paths if it contains '/', of the documents; it defaults to *.naf.\n");
+    this.batchParser.addArgument("-g", "--headFinder")
+        .choices("collins", "sem", Flags.DEFAULT_HEADFINDER)
+        .setDefault(Flags.DEFAULT_HEADFINDER).required(false)
+        .help("Choose between Collins or Semantic HeadFinder.\n");
+    this.batchParser.addArgument("-o", "--outputFormat")
+        .choices("oneline", "naf").setDefault(Flags.DEFAULT_OUTPUT_FORMAT)
+        .required(false).help("Choose outputFormat; it defaults to NAF.\n");
+    this.batchParser.addArgument("-t", "--threads")
+        .setDefault(Integer.toString(Runtime.getRuntime().availableProcessors()))
+        .required(false)
+        .help("Number of documents parsed in parallel; it defaults to the number of cores.\n");
+    addParsingOptions(this.batchParser);
+  }
+
+  private void loadConvertModelParameters() {
+    this.convertModelParser.addArgument("-m", "--model").required(true)
+        .help("The parsing model to convert.\n");
+    this.convertModelParser.addArgument("-o", "--output").required(true)
+        .help("The snapshot file; use it as the model of any other sub-command.\n");
+  }
+
+  /**
+   * Adds the options of the parse, eval, server and batch sub-commands that
+   * configure how sentences are parsed; they are read back by
+   * {@link #setParsingProperties(Properties)}.
+   *
+   * @param parser
+   *          the sub-command parser
+   */
+  private static void addParsingOptions(final ArgumentParser parser) {
+    parser.addArgument("--cacheSize")
+        .setDefault(Flags.DEFAULT_CACHE_SIZE).required(false)
+        .help("Cache the parses of repeated sentences up to this number of tokens; it defaults to 0, no cache.\n");
+    parser.addArgument("--diskCache")
+        .required(false)
+        .help("Directory of the persistent parse cache shared by runs and processes; no cache by default.\n");
+    parser.addArgument("--diskCacheSize")
+        .setDefault(Flags.DEFAULT_DISK_CACHE_SIZE).required(false)
+        .help("Size in MB over which the persistent parse cache is compacted, at most 2047.\n");
+    parser.addArgument("--sentenceTimeout")
+        .setDefault(Flags.DEFAULT_SENTENCE_TIMEOUT).required(false)
+        .help("Milliseconds to parse a sentence before giving it a flat tree of chunks; it defaults to 0, no limit.\n");
+    parser.addArgument("--maxSentenceTokens")
+        .setDefault(Flags.DEFAULT_MAX_SENTENCE_TOKENS).required(false)
+        .help("Sentences with more tokens get a flat tree of chunks instead of being parsed; it defaults to 0, no limit.\n");
+    addBeamPolicyOption(parser);
+    parser.addArgument("--preTagged")
+        .action(Arguments.storeTrue())
+        .help("Parse on top of the part of speech tags of the terms of the document instead of tagging with the model; chunking models only.\n");
+    parser.addArgument("--tagMap")
+        .required(false)
+        .help("File mapping the tags of the terms to the tagset of the model, one 'termTag modelTag' pair per line, for --preTagged.\n");
+  }
+
+  private static void addBeamPolicyOption(final ArgumentParser parser) {
+    parser.addArgument("--beamPolicy")
+        .setDefault(Flags.DEFAULT_BEAM_POLICY).required(false)
+        .help("Beam size by sentence length: fixed (OpenNLP defaults), adaptive (the preset of the language) or steps maxTokens:beamSize[:advancePercentage] separated by commas, the last one *, e.g., 10:5,25:10,*:20; incomplete parses are retried with the next wider beam.\n");
+    parser.addArgument("--beamRetryBudget")
+        .setDefault(Flags.DEFAULT_BEAM_RETRY_BUDGET).required(false)
+        .help("Share of the sentences parsed that can be parsed again with a wider beam when they come back incomplete; it defaults to 0.1.\n");
+  }
+
+  private void setParsingProperties(final Properties properties) {
+    properties.setProperty("cacheSize",
+        this.parsedArguments.getString("cacheSize"));
+    final String diskCache = this.parsedArguments.getString("diskCache");
+    if (diskCache != null) {
+      final String diskCacheSize = this.parsedArguments
+          .getString("diskCacheSize");
+      final long maxMegabytes = DiskParseCache.MAX_BYTES / (1024 * 1024);
+      if (Long.parseLong(diskCacheSize) > maxMegabytes) {
+        System.err.println("-> ERROR: The disk cache size can be at most "
+            + maxMegabytes + " MB, " + diskCacheSize + " given!!");
+        System.exit(1);
+      }
+      properties.setProperty("diskCache", diskCache);
+      properties.setProperty("diskCacheSize", diskCacheSize);
+    }
+    properties.setProperty("beamPolicy",
+        this.parsedArguments.getString("beamPolicy"));
+    properties.setProperty("beamRetryBudget",
+        this.parsedArguments.getString("beamRetryBudget"));
+    properties.setProperty("sentenceTimeout",
+        this.parsedArguments.getString("sentenceTimeout"));
+    properties.setProperty("maxSentenceTokens",
+        this.parsedArguments.getString("maxSentenceTokens"));
+    properties.setProperty("preTagged",
+        Boolean.toString(this.parsedArguments.getBoolean("preTagged")));
+    final String tagMap = this.parsedArguments.getString("tagMap");
+    if (tagMap != null) {
+      properties.setProperty("tagMap", tagMap);
+    }
   }
 
   private Properties setAnnotateProperties(final String model,
-      final String language, final String headFinder) {
+      final String language, final String headFinder, final String threads) {
     final Properties annotateProperties = new Properties();
     annotateProperties.setProperty("model", model);
     annotateProperties.setProperty("language", language);
     annotateProperties.setProperty("headFinder", headFinder);
+    annotateProperties.setProperty("threads", threads);
     return annotateProperties;
   }
 
   private Properties setEvaluateProperties(final String model,
-      final String language, final String headFinder) {
+      final String language, final String headFinder, final String threads) {
     final Properties annotateProperties = new Properties();
     annotateProperties.setProperty("model", model);
     annotateProperties.setProperty("language", language);
     annotateProperties.setProperty("headFinder", headFinder);
+    annotateProperties.setProperty("threads", threads);
     return annotateProperties;
   }
   
-  private Properties setServerProperties(String port, String model, String language, String headFinder, String outputFormat) {
+  private Properties setServerProperties(String port, String model, String language, String headFinder, String outputFormat, String threads) {
     Properties serverProperties = new Properties();
     serverProperties.setProperty("port", port);
     serverProperties.setProperty("model", model);
     serverProperties.setProperty("language", language);
     serverProperties.setProperty("headFinder", headFinder);
     serverProperties.setProperty("outputFormat", outputFormat);
+    serverProperties.setProperty("threads", threads);
     return serverProperties;
   }
 
@@ -0,0 +1,194 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package eus.ixa.ixa.pipe.parse;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import opennlp.tools.parser.Parse;
+import opennlp.tools.parser.ParserModel;
+
+/**
+ * Shift-reduce chunking parser with a time and size budget per sentence and
+ * optional part of speech tags given by the caller.
+ * <p>
+ * Sentences longer than the maximum number of tokens are not parsed, and the
+ * beam search of a sentence is abandoned once the time budget is exhausted;
+ * in both cases the sentence gets a flat tree with the chunks and part of
+ * speech tags found by the parser before building the constituents, under a
+ * {@link ConstituentParser#FALLBACK_NODE} root. Fallbacks are counted in the
+ * {@link ParserMetrics}.
+ * <p>
+ * If the tags of the sentence are set, they replace the beam of the tagger
+ * of the model: the sentence is chunked and parsed on top of those tags
+ * only.
+ * <p>
+ * If the deadline of the request is set, the beam search stops with a
+ * {@link CancellationException} once it passes, with no fallback tree.
+ * <p>
+ * As every OpenNLP parser, instances are not thread-safe.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+final class ChunkingParser extends opennlp.tools.parser.chunking.Parser {
+
+  /**
+   * The time budget in nanoseconds; 0 means no budget.
+   */
+  private final long timeout;
+  /**
+   * The maximum number of tokens parsed; 0 means no maximum.
+   */
+  private final int maxTokens;
+  /**
+   * The metrics counting the fallbacks; null to count none.
+   */
+  private final ParserMetrics metrics;
+  /**
+   * The nano time at which the sentence being parsed runs out of time.
+   */
+  private long deadline;
+  /**
+   * The nano time at which the request of the sentences being parsed runs
+   * out of time; {@link ConstituentParser#NO_DEADLINE} means no deadline.
+   */
+  private long requestDeadline = ConstituentParser.NO_DEADLINE;
+  /**
+   * The tags of the sentence being parsed; null to tag it with the model.
+   */
+  private String[] tags;
+
+  /**
+   * Thrown from the beam search to abandon it; it has no stack trace, as it
+   * is caught right away.
+   */
+  private static final class BudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private BudgetExceededException() {
+      super(null, null, false, false);
+    }
+  }
+
+  /**
+   * @param model
+   *          a chunking parser model
+   * @param beamSize
+   *          the beam size
+   * @param advancePercentage
+   *          the probability mass of the parses advanced at every step
+   * @param timeout
+   *          the time budget of a sentence in milliseconds, 0 for none
+   * @param maxTokens
+   *          the maximum number of tokens of a sentence, 0 for none
+   * @param metrics
+   *          the metrics counting the fallbacks, null to count none
+   */
+  ChunkingParser(final ParserModel model, final int beamSize,
+      final double advancePercentage, final long timeout, final int maxTokens,
+      final ParserMetrics metrics) {
+    super(model, beamSize, advancePercentage);
+    this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+    this.maxTokens = maxTokens;
+    this.metrics = metrics;
+  }
+
+  private void recordFallback(final ParserMetrics.Fallback reason) {
+    if (this.metrics != null) {
+      this.metrics.recordFallback(reason);
+    }
+  }
+
+  /**
+   * @param tags
+   *          the tags of the next sentences, one per token, or null to tag
+   *          them with the model
+   */
+  void setTags(final String[] tags) {
+    this.tags = tags;
+  }
+
+  /**
+   * @param requestDeadline
+   *          the nano time at which the request of the next sentences runs
+   *          out of time, or {@link ConstituentParser#NO_DEADLINE}
+   */
+  void setRequestDeadline(final long requestDeadline) {
+    this.requestDeadline = requestDeadline;
+  }
+
+  @Override
+  public Parse[] parse(final Parse tokens, final int numParses) {
+    if (this.maxTokens > 0 && tokens.getChildCount() > this.maxTokens) {
+      recordFallback(ParserMetrics.Fallback.SIZE);
+      return new Parse[] { chunk(tokens) };
+    }
+    this.deadline = this.timeout > 0 ? System.nanoTime() + this.timeout
+        : Long.MAX_VALUE;
+    try {
+      return super.parse(tokens, numParses);
+    } catch (final BudgetExceededException e) {
+      recordFallback(ParserMetrics.Fallback.TIME);
+      return new Parse[] { chunk(tokens) };
+    }
+  }
+
+  @Override
+  protected Parse[] advanceTags(final Parse p) {
+    if (this.tags == null) {
+      return super.advanceTags(p);
+    }
+    final Parse[] words = p.getChildren();
+    if (words.length != this.tags.length) {
+      throw new IllegalArgumentException("The sentence has " + words.length
+          + " tokens but " + this.tags.length + " tags");
+    }
+    final Parse tagged = (Parse) p.clone();
+    for (int i = 0; i < words.length; i++) {
+      tagged.insert(new Parse(words[i].getText(), words[i].getSpan(),
+          this.tags[i], 1, i));
+    }
+    return new Parse[] { tagged };
+  }
+
+  @Override
+  protected Parse[] advanceParses(final Parse p, final double probMass) {
+    ConstituentParser.checkDeadline(this.requestDeadline);
+    if (System.nanoTime() > this.deadline) {
+      throw new BudgetExceededException();
+    }
+    return super.advanceParses(p, probMass);
+  }
+
+  /**
+   * Tags and chunks a sentence with the best sequences of the tagger and the
+   * chunker of the parser, as in the first two stages of a parse.
+   *
+   * @param tokens
+   *          the sentence, with a token node per token
+   * @return the flat tree
+   */
+  private Parse chunk(final Parse tokens) {
+    Parse chunked = advanceTags(tokens)[0];
+    final Parse[] chunkings = advanceChunks(chunked, -Double.MAX_VALUE);
+    if (chunkings.length > 0) {
+      chunked = chunkings[0];
+    }
+    chunked.setType(ConstituentParser.FALLBACK_NODE);
+    return chunked;
+  }
+}
@@ -0,0 +1,408 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import opennlp.tools.ml.maxent.GISModel;
+import opennlp.tools.ml.model.AbstractModel;
+import opennlp.tools.ml.model.Context;
+import opennlp.tools.ml.model.IndexHashTable;
+import opennlp.tools.ml.model.MaxentModel;
+import opennlp.tools.parser.ParserModel;
+
+/**
+ * Maxent model stored in primitive arrays: the predicates are the characters
+ * of a single array indexed by an open addressing hash table, and the
+ * parameters of every predicate are a slice of one array of outcomes and one
+ * of weights. A {@link GISModel} keeps a map entry, a string and a context
+ * object with two arrays per predicate instead, which for the build and
+ * check models of a parser are millions of small objects to keep in the heap
+ * and to mark at every collection.
+ * <p>
+ * The arrays are read through buffers, so that the same model is either on
+ * the heap or mapped from a {@link ModelSnapshot}, where it is {@link
+ * #write(DataOutputStream) written} as it is laid out in memory.
+ * <p>
+ * Predictions are those of the GIS model, but for the rounding of the weights
+ * to floats. The model only supports prediction: its data structures are
+ * empty, so it cannot be serialized as an OpenNLP model.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+final class CompactMaxentModel extends AbstractModel {
+
+  private static final String[] NO_PREDICATES = new String[0];
+  private static final Context[] NO_PARAMETERS = new Context[0];
+  /**
+   * The count of active features of every outcome, reused by the evaluations
+   * of every model in a thread and grown for the model with most outcomes.
+   */
+  private static final ThreadLocal<int[]> ACTIVE_FEATURES = ThreadLocal
+      .withInitial(() -> new int[0]);
+
+  /**
+   * The hash table of the predicates: the predicate index plus one, or 0 for
+   * an empty slot. Its size is a power of two.
+   */
+  private final IntBuffer slots;
+  private final IntBuffer predicateHashes;
+  /**
+   * The start of every predicate in the characters plus the end of the last
+   * one.
+   */
+  private final IntBuffer predicateOffsets;
+  /**
+   * The start of the parameters of every predicate plus the end of the last
+   * one.
+   */
+  private final IntBuffer parameterOffsets;
+  private final IntBuffer outcomes;
+  private final FloatBuffer weights;
+  /**
+   * The characters of every predicate, one after the other.
+   */
+  private final CharBuffer predicateChars;
+  private final String[] outcomeNames;
+  private final int numOutcomes;
+  private final double correctionConstant;
+  private final double correctionParam;
+
+  private CompactMaxentModel(final String[] outcomeNames,
+      final double correctionConstant, final double correctionParam,
+      final IntBuffer slots, final IntBuffer predicateHashes,
+      final IntBuffer predicateOffsets, final IntBuffer parameterOffsets,
+      final IntBuffer outcomes, final FloatBuffer weights,
+      final CharBuffer predicateChars) {
+    super(NO_PARAMETERS, NO_PREDICATES, outcomeNames);
+    this.modelType = ModelType.Maxent;
+    this.outcomeNames = outcomeNames;
+    this.numOutcomes = outcomeNames.length;
+    this.correctionConstant = correctionConstant;
+    this.correctionParam = correctionParam;
+    this.slots = slots;
+    this.predicateHashes = predicateHashes;
+    this.predicateOffsets = predicateOffsets;
+    this.parameterOffsets = parameterOffsets;
+    this.outcomes = outcomes;
+    this.weights = weights;
+    this.predicateChars = predicateChars;
+  }
+
+  private static CompactMaxentModel create(final Context[] params,
+      final String[] predicates, final String[] outcomeNames,
+      final int correctionConstant, final double correctionParam) {
+    int chars = 0;
+    int parameters = 0;
+    for (int i = 0; i < predicates.length; i++) {
+      chars += predicates[i].length();
+      parameters += params[i].getOutcomes().length;
+    }
+    final char[] predicateChars = new char[chars];
+    final int[] predicateOffsets = new int[predicates.length + 1];
+    final int[] predicateHashes = new int[predicates.length];
+    final int[] parameterOffsets = new int[predicates.length + 1];
+    final int[] outcomes = new int[parameters];
+    final float[] weights = new float[parameters];
+    // at most half full
+    final int[] slots = new int[Integer.highestOneBit(Math.max(1,
+        predicates.length * 2 - 1)) << 1];
+    chars = 0;
+    parameters = 0;
+    for (int i = 0; i < predicates.length; i++) {
+      final String predicate = predicates[i];
+      predicate.getChars(0, predicate.length(), predicateChars, chars);
+      chars += predicate.length();
+      predicateOffsets[i + 1] = chars;
+      predicateHashes[i] = predicate.hashCode();
+      int slot = slot(predicateHashes[i], slots.length);
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & (slots.length - 1);
+      }
+      slots[slot] = i + 1;
+      final int[] predicateOutcomes = params[i].getOutcomes();
+      final double[] predicateWeights = params[i].getParameters();
+      for (int j = 0; j < predicateOutcomes.length; j++) {
+        outcomes[parameters] = predicateOutcomes[j];
+        weights[parameters] = (float) predicateWeights[j];
+        parameters++;
+      }
+      parameterOffsets[i + 1] = parameters;
+    }
+    return new CompactMaxentModel(outcomeNames, correctionConstant,
+        correctionParam, IntBuffer.wrap(slots), IntBuffer.wrap(predicateHashes),
+        IntBuffer.wrap(predicateOffsets), IntBuffer.wrap(parameterOffsets),
+        IntBuffer.wrap(outcomes), FloatBuffer.wrap(weights),
+        CharBuffer.wrap(predicateChars));
+  }
+
+  /**
+   * Converts a maxent model to its compact form.
+   *
+   * @param model
+   *          the model
+   * @return the compact model, or the same model if it is not a GIS model
+   */
+  @SuppressWarnings("unchecked")
+  static MaxentModel compact(final MaxentModel model) {
+    if (!(model instanceof GISModel)) {
+      return model;
+    }
+    final Object[] data = ((GISModel) model).getDataStructures();
+    final IndexHashTable<String> predicateIndex =
+        (IndexHashTable<String>) data[1];
+    return create((Context[]) data[0],
+        predicateIndex.toArray(new String[predicateIndex.size()]),
+        (String[]) data[2], (Integer) data[3], (Double) data[4]);
+  }
+
+  /**
+   * Replaces the build and check models of a parser model, the ones
+   * evaluated at every step of the beam search, with their compact form.
+   * The tagger and chunker models are left as they are.
+   *
+   * @param model
+   *          the parser model
+   * @return the parser model with compact build and check models
+   */
+  static ParserModel compact(final ParserModel model) {
+    final MaxentModel buildModel = compact(model.getBuildModel());
+    final ParserModel compactModel = buildModel == model.getBuildModel()
+        ? model : model.updateBuildModel(buildModel);
+    final MaxentModel checkModel = compact(model.getCheckModel());
+    return checkModel == model.getCheckModel() ? compactModel : compactModel
+        .updateCheckModel(checkModel);
+  }
+
+  /**
+   * Writes the model as laid out in memory, for {@link #read(ByteBuffer)}:
+   * the outcome names and the correction constants followed by every array,
+   * big-endian, padded to a multiple of 8 bytes.
+   *
+   * @param out
+   *          the output, at a multiple of 8 bytes from the start
+   * @throws IOException
+   *           if io error
+   */
+  void write(final DataOutputStream out) throws IOException {
+    out.writeInt(this.numOutcomes);
+    for (final String outcome : this.outcomeNames) {
+      out.writeInt(outcome.length());
+      out.writeChars(outcome);
+    }
+    out.writeInt(this.slots.limit());
+    out.writeInt(this.predicateHashes.limit());
+    out.writeInt(this.outcomes.limit());
+    out.writeInt(this.predicateChars.limit());
+    out.writeDouble(this.correctionConstant);
+    out.writeDouble(this.correctionParam);
+    writeInts(out, this.slots);
+    writeInts(out, this.predicateHashes);
+    writeInts(out, this.predicateOffsets);
+    writeInts(out, this.parameterOffsets);
+    writeInts(out, this.outcomes);
+    for (int i = 0; i < this.weights.limit(); i++) {
+      out.writeFloat(this.weights.get(i));
+    }
+    for (int i = 0; i < this.predicateChars.limit(); i++) {
+      out.writeChar(this.predicateChars.get(i));
+    }
+    while (out.size() % 8 != 0) {
+      out.writeByte(0);
+    }
+  }
+
+  private static void writeInts(final DataOutputStream out,
+      final IntBuffer ints) throws IOException {
+    for (int i = 0; i < ints.limit(); i++) {
+      out.writeInt(ints.get(i));
+    }
+  }
+
+  /**
+   * Reads a model written by {@link #write(DataOutputStream)}. Only the
+   * outcome names are copied to the heap; the arrays are views of the
+   * buffer, so a model in a mapped file is read from the page cache as it is
+   * used.
+   *
+   * @param buffer
+   *          the buffer, big-endian, at the start of the model; it is left
+   *          at the end of it
+   * @return the model
+   */
+  static CompactMaxentModel read(final ByteBuffer buffer) {
+    final String[] outcomeNames = new String[buffer.getInt()];
+    for (int i = 0; i < outcomeNames.length; i++) {
+      final char[] outcome = new char[buffer.getInt()];
+      buffer.asCharBuffer().get(outcome);
+      buffer.position(buffer.position() + outcome.length * 2);
+      outcomeNames[i] = new String(outcome);
+    }
+    final int numSlots = buffer.getInt();
+    final int numPredicates = buffer.getInt();
+    final int numParameters = buffer.getInt();
+    final int numChars = buffer.getInt();
+    final double correctionConstant = buffer.getDouble();
+    final double correctionParam = buffer.getDouble();
+    final IntBuffer slots = sliceInts(buffer, numSlots);
+    final IntBuffer predicateHashes = sliceInts(buffer, numPredicates);
+    final IntBuffer predicateOffsets = sliceInts(buffer, numPredicates + 1);
+    final IntBuffer parameterOffsets = sliceInts(buffer, numPredicates + 1);
+    final IntBuffer outcomes = sliceInts(buffer, numParameters);
+    final FloatBuffer weights = buffer.slice().asFloatBuffer();
+    weights.limit(numParameters);
+    buffer.position(buffer.position() + numParameters * 4);
+    final CharBuffer predicateChars = buffer.slice().asCharBuffer();
+    predicateChars.limit(numChars);
+    buffer.position(buffer.position() + numChars * 2);
+    buffer.position(buffer.position() + 7 & ~7);
+    return new CompactMaxentModel(outcomeNames, correctionConstant,
+        correctionParam, slots, predicateHashes, predicateOffsets,
+        parameterOffsets, outcomes, weights, predicateChars);
+  }
+
+  private static IntBuffer sliceInts(final ByteBuffer buffer, final int size) {
+    final IntBuffer ints = buffer.slice().asIntBuffer();
+    ints.limit(size);
+    buffer.position(buffer.position() + size * 4);
+    return ints;
+  }
+
+  private static int slot(final int hash, final int numSlots) {
+    // spread the bits of the string hash over the low ones
+    final int mixed = hash * 0x9E3779B9;
+    return (mixed ^ mixed >>> 16) & (numSlots - 1);
+  }
+
+  /**
+   * @param predicate
+   *          a predicate
+   * @return the index of the predicate or -1 if it is not in the model
+   */
+  private int getPredicateIndex(final String predicate) {
+    final int hash = predicate.hashCode();
+    final int mask = this.slots.limit() - 1;
+    int slot = slot(hash, mask + 1);
+    int entry;
+    while ((entry = this.slots.get(slot)) != 0) {
+      final int index = entry - 1;
+      if (this.predicateHashes.get(index) == hash
+          && matches(index, predicate)) {
+        return index;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  private boolean matches(final int index, final String predicate) {
+    final int start = this.predicateOffsets.get(index);
+    if (this.predicateOffsets.get(index + 1) - start != predicate.length()) {
+      return false;
+    }
+    for (int i = 0; i < predicate.length(); i++) {
+      if (this.predicateChars.get(start + i) != predicate.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public double[] eval(final String[] context) {
+    return eval(context, null, new double[this.numOutcomes]);
+  }
+
+  @Override
+  public double[] eval(final String[] context, final double[] probs) {
+    return eval(context, null, probs);
+  }
+
+  @Override
+  public double[] eval(final String[] context, final float[] values) {
+    return eval(context, values, new double[this.numOutcomes]);
+  }
+
+  /**
+   * Evaluates a context as {@link GISModel} does.
+   *
+   * @param context
+   *          the predicates of the context
+   * @param values
+   *          the value of every predicate, or null if all are 1
+   * @param outsums
+   *          the array to fill with the probability of every outcome
+   * @return the probabilities
+   */
+  private double[] eval(final String[] context, final float[] values,
+      final double[] outsums) {
+    Arrays.fill(outsums, 0, this.numOutcomes, 0);
+    final int[] activeFeatures = this.correctionParam != 0
+        ? getActiveFeatures() : null;
+    for (int i = 0; i < context.length; i++) {
+      final int predicate = getPredicateIndex(context[i]);
+      if (predicate < 0) {
+        continue;
+      }
+      final double value = values == null ? 1 : values[i];
+      final int end = this.parameterOffsets.get(predicate + 1);
+      for (int j = this.parameterOffsets.get(predicate); j < end; j++) {
+        final int outcome = this.outcomes.get(j);
+        outsums[outcome] += this.weights.get(j) * value;
+        if (activeFeatures != null) {
+          activeFeatures[outcome]++;
+        }
+      }
+    }
+    double normal = 0;
+    for (int i = 0; i < this.numOutcomes; i++) {
+      double sum = outsums[i] / this.correctionConstant;
+      if (activeFeatures != null) {
+        sum += (1.0 - activeFeatures[i] / this.correctionConstant)
+            * this.correctionParam;
+      }
+      outsums[i] = Math.exp(sum);
+      normal += outsums[i];
+    }
+    for (int i = 0; i < this.numOutcomes; i++) {
+      outsums[i] /= normal;
+    }
+    return outsums;
+  }
+
+  /**
+   * @return the active feature counts of this thread, cleared for the
+   *         outcomes of the model
+   */
+  private int[] getActiveFeatures() {
+    int[] activeFeatures = ACTIVE_FEATURES.get();
+    if (activeFeatures.length < this.numOutcomes) {
+      activeFeatures = new int[this.numOutcomes];
+      ACTIVE_FEATURES.set(activeFeatures);
+    } else {
+      Arrays.fill(activeFeatures, 0, this.numOutcomes, 0);
+    }
+    return activeFeatures;
+  }
+}
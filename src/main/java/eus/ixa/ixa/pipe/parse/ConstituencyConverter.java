@@ -0,0 +1,185 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.NonTerminal;
+import ixa.kaflib.Span;
+import ixa.kaflib.Term;
+import ixa.kaflib.TreeNode;
+import ixa.kaflib.WF;
+import opennlp.tools.parser.AbstractBottomUpParser;
+import opennlp.tools.parser.Parse;
+
+/**
+ * Adds parse trees to the constituency layer of a NAF document by walking the
+ * Parse objects directly, instead of rendering them in Penn Treebank format
+ * and reading the brackets back with
+ * {@link KAFDocument#addConstituencyFromParentheses(String)}, with the same
+ * result. Every constituent, tag nodes included, becomes a non-terminal and
+ * every token a terminal spanning the term of its word form, so every word
+ * form of a multiword term has a tag node and a terminal spanning the term.
+ * Heads are marked on the non-terminals instead of in the labels; terminals
+ * are never marked as heads.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+public final class ConstituencyConverter {
+
+  /**
+   * This class is to be statically used.
+   */
+  private ConstituencyConverter() {
+  }
+
+  /**
+   * Adds the tree of a sentence to the constituency layer.
+   *
+   * @param kaf
+   *          the document
+   * @param sentence
+   *          the word forms of the sentence, one per token of the tree
+   * @param parse
+   *          the parse tree
+   * @param heads
+   *          the head child position of every node of the tree in preorder,
+   *          as returned by
+   *          {@link eus.ixa.ixa.pipe.heads.HeadFinder#findHeads(Parse)}, or
+   *          null if heads are not marked
+   * @throws Exception
+   *           if the tree cannot be added to the document, e.g., if the word
+   *           forms of the sentence have no terms
+   */
+  public static void addTree(final KAFDocument kaf, final List<WF> sentence,
+      final Parse parse, final int[] heads) throws Exception {
+    final Parse[] tokens = parse.getTagNodes();
+    if (tokens.length != sentence.size()) {
+      throw new IllegalArgumentException("The tree has " + tokens.length
+          + " tokens but the sentence " + sentence.size() + " word forms");
+    }
+    final Term[] terms = getTerms(kaf, sentence);
+    final Builder builder = new Builder(kaf, terms, heads);
+    final TreeNode root = builder.build(parse);
+    if (root == null) {
+      throw new IllegalArgumentException("The sentence starting at word form "
+          + sentence.get(0).getId() + " has no terms to add to its tree");
+    }
+    kaf.newConstituent(root);
+  }
+
+  /**
+   * Maps the word forms to the terms of their sentence. The terms are looked
+   * up by sentence because
+   * {@link KAFDocument#getTermsFromWFs(List)} fails on word forms without
+   * terms.
+   *
+   * @param kaf
+   *          the document
+   * @param sentence
+   *          the word forms of the sentence
+   * @return the term of every word form, or null for the word forms without
+   *         a term
+   * @throws IllegalArgumentException
+   *           if no word form of the sentence has a term
+   */
+  private static Term[] getTerms(final KAFDocument kaf,
+      final List<WF> sentence) {
+    final List<Term> sentenceTerms = sentence.isEmpty() ? null : kaf
+        .getTermsBySent(sentence.get(0).getSent());
+    if (sentenceTerms == null || sentenceTerms.isEmpty()) {
+      throw new IllegalArgumentException("The sentence "
+          + (sentence.isEmpty() ? "" : "starting at word form "
+              + sentence.get(0).getId() + " ")
+          + "has no terms to add to its tree");
+    }
+    final Map<String, Term> termsByWF = new HashMap<>();
+    for (final Term term : sentenceTerms) {
+      for (final WF wf : term.getWFs()) {
+        termsByWF.putIfAbsent(wf.getId(), term);
+      }
+    }
+    final Term[] terms = new Term[sentence.size()];
+    for (int i = 0; i < terms.length; i++) {
+      terms[i] = termsByWF.get(sentence.get(i).getId());
+    }
+    return terms;
+  }
+
+  /**
+   * Builds the nodes of one tree, visiting the Parse nodes in preorder to
+   * follow the numbering of the heads array.
+   */
+  private static final class Builder {
+    private final KAFDocument kaf;
+    private final Term[] terms;
+    private final int[] heads;
+    private int node;
+    private int token;
+
+    private Builder(final KAFDocument kaf, final Term[] terms,
+        final int[] heads) {
+      this.kaf = kaf;
+      this.terms = terms;
+      this.heads = heads;
+    }
+
+    /**
+     * @param parse
+     *          the Parse node
+     * @return the NAF node or null if the node covers no term
+     * @throws Exception
+     *           if the node cannot be created
+     */
+    private TreeNode build(final Parse parse) throws Exception {
+      final int head = this.heads == null ? -1 : this.heads[this.node];
+      this.node++;
+      if (parse.getType().equals(AbstractBottomUpParser.TOK_NODE)) {
+        final Term term = this.terms[this.token++];
+        if (term == null) {
+          return null;
+        }
+        final Span<Term> span = KAFDocument.newTermSpan(Collections
+            .singletonList(term));
+        return this.kaf.newTerminal(span);
+      }
+      NonTerminal nonTerminal = null;
+      final Parse[] children = parse.getChildren();
+      for (int i = 0; i < children.length; i++) {
+        final TreeNode child = build(children[i]);
+        if (child == null) {
+          continue;
+        }
+        if (nonTerminal == null) {
+          nonTerminal = this.kaf.newNonTerminal(parse.getType());
+        }
+        // the Penn Treebank head marks, and thus the heads of the
+        // parentheses conversion, are only on constituents
+        if (i == head && child instanceof NonTerminal) {
+          child.setHead(true);
+        }
+        nonTerminal.addChild(child);
+      }
+      return nonTerminal;
+    }
+  }
+}
@@ -16,17 +16,25 @@
 
 package eus.ixa.ixa.pipe.parse;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Date;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 
 import opennlp.tools.cmdline.parser.ParserTool;
+import opennlp.tools.parser.AbstractBottomUpParser;
 import opennlp.tools.parser.Parse;
 import opennlp.tools.parser.Parser;
 import opennlp.tools.parser.ParserFactory;
 import opennlp.tools.parser.ParserModel;
+import opennlp.tools.parser.ParserType;
+import opennlp.tools.util.Span;
 
 /**
  * Probabilistic Constituent Parser based on Apache OpenNLP shift-reduced parser
@@ -36,48 +44,161 @@ import opennlp.tools.parser.ParserModel;
  * @version 2015-09-17
  */
 
-public class ConstituentParser {
+public class ConstituentParser implements AutoCloseable {
 
   /**
-   * The models to use for every language. The keys of the hash are the language
-   * codes, the values the models.
+   * The root label of the flat trees given to the sentences exceeding the
+   * time or size budget. It reads as TOP with a functional tag, so tools
+   * removing functional tags see a regular tree.
    */
-  private static final ConcurrentHashMap<String, ParserModel> parseModels = new ConcurrentHashMap<>();
+  public static final String FALLBACK_NODE = "TOP-FALLBACK";
   /**
-   * The parser.
+   * The deadline of the parses of requests without one.
    */
-  private final Parser parser;
+  public static final long NO_DEADLINE = Long.MAX_VALUE;
+  /**
+   * Separates the tokens from the tags of a pre-tagged sentence in the cache
+   * keys.
+   */
+  private static final String TAGS_SEPARATOR = "\u0001";
+  /**
+   * Starts the cache keys of the sentences given as a line, whose brackets
+   * are escaped by the parser, so that they do not share the parses of the
+   * same tokens given as an array.
+   */
+  private static final String LINE_PREFIX = "\u0002";
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+  /**
+   * The reference to the model in the {@link ModelRegistry}.
+   */
+  private final ModelRegistry.Handle modelHandle;
+  /**
+   * The model shared by every parser.
+   */
+  private final ParserModel parserModel;
+  /**
+   * The beam size and advance percentage of every sentence.
+   */
+  private final BeamPolicy beamPolicy;
+  /**
+   * The idle parsers of every step of the beam policy. OpenNLP parsers keep
+   * the beam search state in instance fields and cannot be shared between
+   * threads, but they are cheap to create on top of the shared
+   * {@code ParserModel}; every parse borrows one and gives it back, so the
+   * pools grow to the number of concurrent parses.
+   */
+  private final List<Queue<Parser>> parsers;
+  private final ParserMetrics metrics = ParserMetrics.getDefault();
+  /**
+   * The cache of parse results; null if disabled.
+   */
+  private final ParseCache parseCache;
+  /**
+   * The time budget of a sentence in milliseconds; 0 means no budget.
+   */
+  private final long sentenceTimeout;
+  /**
+   * The maximum number of tokens of a sentence parsed; 0 means no maximum.
+   */
+  private final int maxSentenceTokens;
 
   public ConstituentParser(final Properties properties) {
-    final String lang = properties.getProperty("language");
     final String model = properties.getProperty("model");
-    final ParserModel parserModel = loadModel(lang, model);
-    this.parser = ParserFactory.create(parserModel);
-  }
-
-  private ParserModel loadModel(final String lang, final String model) {
-    final long lStartTime = new Date().getTime();
     try {
-      synchronized (parseModels) {
-        if (!parseModels.containsKey(lang)) {
-          parseModels.put(lang, new ParserModel(new FileInputStream(model)));
-        }
-      }
+      this.modelHandle = ModelRegistry.acquire(model);
     } catch (final IOException e) {
-      e.printStackTrace();
+      throw new UncheckedIOException("Could not load parser model " + model, e);
+    }
+    this.parserModel = this.modelHandle.getModel();
+    this.beamPolicy = BeamPolicy.get(properties.getProperty("beamPolicy",
+        Flags.DEFAULT_BEAM_POLICY), properties.getProperty("language"),
+        Double.parseDouble(properties.getProperty("beamRetryBudget",
+            Flags.DEFAULT_BEAM_RETRY_BUDGET)));
+    this.parsers = new ArrayList<>(this.beamPolicy.size());
+    for (int i = 0; i < this.beamPolicy.size(); i++) {
+      this.parsers.add(new ConcurrentLinkedQueue<>());
+    }
+    final long cacheSize = Long.parseLong(properties.getProperty("cacheSize",
+        Flags.DEFAULT_CACHE_SIZE));
+    this.parseCache = cacheSize > 0 ? new ParseCache(cacheSize) : null;
+    long timeout = Long.parseLong(properties.getProperty("sentenceTimeout",
+        Flags.DEFAULT_SENTENCE_TIMEOUT));
+    int maxTokens = Integer.parseInt(properties.getProperty(
+        "maxSentenceTokens", Flags.DEFAULT_MAX_SENTENCE_TOKENS));
+    if ((timeout > 0 || maxTokens > 0)
+        && this.parserModel.getParserType() != ParserType.CHUNKING) {
+      System.err.println("-> WARNING: Sentence budgets require a chunking parser model, parsing without them!!");
+      timeout = 0;
+      maxTokens = 0;
+    }
+    this.sentenceTimeout = timeout;
+    this.maxSentenceTokens = maxTokens;
+  }
+
+  /**
+   * @param parse
+   *          a parse tree
+   * @return whether the tree is the fallback of a sentence exceeding the time
+   *         or size budget
+   */
+  public static boolean isFallback(final Parse parse) {
+    return FALLBACK_NODE.equals(parse.getType());
+  }
+
+  /**
+   * @return whether the model can parse sentences tagged beforehand; only
+   *         chunking models can
+   */
+  public boolean acceptsTags() {
+    return this.parserModel.getParserType() == ParserType.CHUNKING;
+  }
+
+  /**
+   * @return the key identifying the model in the {@link ModelRegistry}
+   */
+  public String getModelKey() {
+    return this.modelHandle.getKey();
+  }
+
+  /**
+   * @return the key identifying the parse results in the caches: the model
+   *         key followed by the beam policy unless it is the fixed one
+   */
+  public String getCacheKey() {
+    return this.beamPolicy.isFixed() ? getModelKey() : getModelKey()
+        + DiskParseCache.OPTIONS_SEPARATOR + "beamPolicy=" + this.beamPolicy;
+  }
+
+  /**
+   * @return the cache of parse results or null if it is disabled
+   */
+  public ParseCache getParseCache() {
+    return this.parseCache;
+  }
+
+  /**
+   * Releases the reference to the model.
+   */
+  @Override
+  public void close() {
+    for (final Queue<Parser> stepParsers : this.parsers) {
+      stepParsers.clear();
     }
-    final long lEndTime = new Date().getTime();
-    final long difference = lEndTime - lStartTime;
-    System.err.println("ixa-pipe-parse model loaded in: " + difference
-        + " miliseconds ... [DONE]");
-    return parseModels.get(lang);
+    this.modelHandle.close();
   }
 
   /**
    * This method receives as an input a tokenized sentence and stores the parses
    * in a Parse object array. The parses can then be visualized in the usual
-   * treebank format by using the Parse.show() function.
-   * 
+   * treebank format by using the Parse.show() function. This method can be
+   * called concurrently from several threads. If the cache is enabled, the
+   * sentences already parsed are not parsed again. If a sentence exceeds the
+   * time or size budget, the only tree returned is a flat one with the chunks
+   * of the sentence and {@link #FALLBACK_NODE} as root.
+   * <p>
+   * The beam of the parser depends on the length of the sentence as defined
+   * by the beam policy; if the best parse is incomplete, the sentence is
+   * parsed again with the next wider beam of the policy.
    * 
    * @param sentence
    *          tokenized sentence
@@ -87,8 +208,301 @@ public class ConstituentParser {
    * 
    * */
   public Parse[] parse(final String sentence, final int numParses) {
-    return ParserTool.parseLine(sentence, this.parser,
-        numParses);
+    if (this.parseCache != null) {
+      final int numTokens = countTokens(sentence);
+      return this.parseCache.get(getCacheKey(), LINE_PREFIX
+          + getCacheSentence(WHITESPACE.split(sentence.trim())), numTokens,
+          numParses,
+          () -> parseSentence(numTokens,
+              parser -> ParserTool.parseLine(sentence, parser, numParses),
+              NO_DEADLINE));
+    }
+    return parseSentence(countTokens(sentence),
+        parser -> ParserTool.parseLine(sentence, parser, numParses),
+        NO_DEADLINE);
+  }
+
+  /**
+   * Parses a tokenized sentence as {@link #parse(String, int)}, but taking
+   * the tokens as they are: the input of the parser is built directly from
+   * them instead of joining them and splitting them again, so tokens keep
+   * their brackets and may contain spaces.
+   * 
+   * @param tokens
+   *          the tokens of the sentence
+   * @param numParses
+   *          number of parses
+   * @return an array Parse objects (as many as numParses parameter)
+   */
+  public Parse[] parse(final String[] tokens, final int numParses) {
+    return parse(tokens, null, numParses, NO_DEADLINE);
+  }
+
+  /**
+   * Parses a sentence tagged beforehand, e.g., by a part of speech tagger
+   * earlier in the pipeline: the tagger of the model is skipped and the
+   * sentence is chunked and parsed on top of the given tags, which are also
+   * the tags of the resulting trees. The tags are ignored if the model does
+   * not {@link #acceptsTags() accept them}. Otherwise as
+   * {@link #parse(String[], int)}.
+   * 
+   * @param tokens
+   *          the tokens of the sentence
+   * @param tags
+   *          the part of speech tag of every token
+   * @param numParses
+   *          number of parses
+   * @return an array Parse objects (as many as numParses parameter)
+   */
+  public Parse[] parse(final String[] tokens, final String[] tags,
+      final int numParses) {
+    return parse(tokens, tags, numParses, NO_DEADLINE);
+  }
+
+  /**
+   * Parses a tokenized sentence, tagged beforehand or not, as
+   * {@link #parse(String[], String[], int)}, until the deadline of the
+   * request it belongs to. The deadline is checked between the steps of the
+   * beam search of chunking models and before every beam of the policy.
+   * 
+   * @param tokens
+   *          the tokens of the sentence
+   * @param tags
+   *          the part of speech tag of every token or null to let the parser
+   *          tag them
+   * @param numParses
+   *          number of parses
+   * @param deadline
+   *          the nano time at which the request runs out of time, or
+   *          {@link #NO_DEADLINE}
+   * @return an array Parse objects (as many as numParses parameter)
+   * @throws CancellationException
+   *           if the deadline passes before the sentence is parsed
+   */
+  public Parse[] parse(final String[] tokens, final String[] tags,
+      final int numParses, final long deadline) {
+    if (tags != null && tokens.length != tags.length) {
+      throw new IllegalArgumentException("The sentence has " + tokens.length
+          + " tokens but " + tags.length + " tags");
+    }
+    if (this.parseCache != null) {
+      final String sentence = tags == null ? getCacheSentence(tokens)
+          : getCacheSentence(tokens, tags);
+      while (true) {
+        try {
+          return this.parseCache.get(getCacheKey(), sentence, tokens.length,
+              numParses, () -> parseSentence(tokens.length, parser -> parseTokens(parser,
+                  tokens, tags, numParses, deadline), deadline));
+        } catch (final CancellationException e) {
+          // the sentence was being parsed for a request whose deadline
+          // passed, parse it again unless the deadline of this one did too
+          checkDeadline(deadline);
+        }
+      }
+    }
+    return parseSentence(tokens.length, parser -> parseTokens(parser, tokens,
+        tags, numParses, deadline), deadline);
+  }
+
+  /**
+   * @param deadline
+   *          the nano time at which a request runs out of time, or
+   *          {@link #NO_DEADLINE}
+   * @throws CancellationException
+   *           if the deadline has passed
+   */
+  static void checkDeadline(final long deadline) {
+    if (deadline != NO_DEADLINE && System.nanoTime() - deadline > 0) {
+      throw new CancellationException("Deadline exceeded");
+    }
+  }
+
+  /**
+   * Every token is written after its length, so that tokens containing
+   * spaces, or any other character, cannot be confused with several tokens.
+   * 
+   * @param tokens
+   *          the tokens of a sentence
+   * @return the sentence identifying the tokens in the caches
+   */
+  static String getCacheSentence(final String[] tokens) {
+    final StringBuilder sentence = new StringBuilder();
+    for (final String token : tokens) {
+      sentence.append(token.length()).append(':').append(token);
+    }
+    return sentence.toString();
+  }
+
+  /**
+   * @param tokens
+   *          the tokens of a pre-tagged sentence
+   * @param tags
+   *          the part of speech tag of every token
+   * @return the sentence identifying the tokens and the tags in the caches
+   */
+  static String getCacheSentence(final String[] tokens, final String[] tags) {
+    return getCacheSentence(tokens) + TAGS_SEPARATOR + getCacheSentence(tags);
+  }
+
+  /**
+   * Parses a sentence with the beam of the policy for its length, and again
+   * with wider beams while the best parse is incomplete, the retry budget of
+   * the policy allows it and the deadline has not passed.
+   * 
+   * @param tokens
+   *          the number of tokens of the sentence
+   * @param parse
+   *          parses the sentence with the given parser
+   * @param deadline
+   *          the nano time at which the request runs out of time, or
+   *          {@link #NO_DEADLINE}
+   * @return the parses
+   */
+  private Parse[] parseSentence(final int tokens,
+      final Function<Parser, Parse[]> parse, final long deadline) {
+    int step = this.beamPolicy.getStep(tokens);
+    this.beamPolicy.countSentence();
+    while (true) {
+      checkDeadline(deadline);
+      final Parse[] parses = parseSentence(parse, step);
+      if (parses.length == 0 || isComplete(parses[0])) {
+        return parses;
+      }
+      final int widerStep = this.beamPolicy.getWiderStep(step);
+      if (widerStep < 0) {
+        return parses;
+      }
+      this.metrics.recordBeamRetry();
+      step = widerStep;
+    }
+  }
+
+  private Parse[] parseSentence(final Function<Parser, Parse[]> parse,
+      final int step) {
+    final Queue<Parser> stepParsers = this.parsers.get(step);
+    Parser parser = stepParsers.poll();
+    if (parser == null) {
+      parser = createParser(step, this.metrics);
+    }
+    try {
+      return parse.apply(parser);
+    } finally {
+      stepParsers.offer(parser);
+    }
+  }
+
+  /**
+   * @param step
+   *          the step of the beam policy
+   * @param parserMetrics
+   *          the metrics counting the fallbacks, null to count none
+   * @return a new parser with the beam of the step
+   */
+  private Parser createParser(final int step,
+      final ParserMetrics parserMetrics) {
+    final int beamSize = this.beamPolicy.getBeamSize(step);
+    final double advancePercentage = this.beamPolicy
+        .getAdvancePercentage(step);
+    return acceptsTags() ? new ChunkingParser(this.parserModel, beamSize,
+        advancePercentage, this.sentenceTimeout, this.maxSentenceTokens,
+        parserMetrics) : ParserFactory.create(this.parserModel, beamSize,
+        advancePercentage);
+  }
+
+  /**
+   * Parses sentences to warm up the model before it gets traffic. The cache
+   * is bypassed and nothing is recorded in the metrics, and the parsers used
+   * are discarded afterwards, so that warming up leaves no trace in the
+   * parses and metrics of the requests.
+   * 
+   * @param sentences
+   *          the tokens of every sentence
+   * @return the best parse of every sentence
+   */
+  public List<Parse> warmUp(final List<String[]> sentences) {
+    final Parser[] warmupParsers = new Parser[this.beamPolicy.size()];
+    final List<Parse> parses = new ArrayList<>(sentences.size());
+    for (final String[] tokens : sentences) {
+      final int step = this.beamPolicy.getStep(tokens.length);
+      if (warmupParsers[step] == null) {
+        warmupParsers[step] = createParser(step, null);
+      }
+      parses.add(parseTokens(warmupParsers[step], tokens, null, 1,
+          NO_DEADLINE)[0]);
+    }
+    return parses;
+  }
+
+  /**
+   * Parses a tokenized sentence, seeding the parser with the tags, if any,
+   * and the deadline if it accepts them.
+   */
+  private static Parse[] parseTokens(final Parser parser,
+      final String[] tokens, final String[] tags, final int numParses,
+      final long deadline) {
+    final ChunkingParser chunkingParser = parser instanceof ChunkingParser
+        ? (ChunkingParser) parser : null;
+    if (chunkingParser != null) {
+      chunkingParser.setTags(tags);
+      chunkingParser.setRequestDeadline(deadline);
+    }
+    try {
+      final Parse sentence = getSentence(tokens);
+      return numParses == 1 ? new Parse[] { parser.parse(sentence) } : parser
+          .parse(sentence, numParses);
+    } finally {
+      if (chunkingParser != null) {
+        chunkingParser.setTags(null);
+        chunkingParser.setRequestDeadline(NO_DEADLINE);
+      }
+    }
+  }
+
+  /**
+   * Builds the input of the parser, the tokens joined by a space under an
+   * incomplete node, as {@link ParserTool#parseLine(String, Parser, int)}
+   * does, but taking the tokens as they are.
+   * 
+   * @param tokens
+   *          the tokens of the sentence
+   * @return the sentence with a token node per token
+   */
+  private static Parse getSentence(final String[] tokens) {
+    final String text = String.join(" ", tokens);
+    final Parse sentence = new Parse(text, new Span(0, text.length()),
+        AbstractBottomUpParser.INC_NODE, 0, 0);
+    int start = 0;
+    for (int i = 0; i < tokens.length; i++) {
+      final int end = start + tokens[i].length();
+      sentence.insert(new Parse(text, new Span(start, end),
+          AbstractBottomUpParser.TOK_NODE, 0, i));
+      start = end + 1;
+    }
+    return sentence;
+  }
+
+  /**
+   * @param parse
+   *          a parse tree
+   * @return whether the beam search found a complete tree, or gave up on
+   *         the sentence
+   */
+  private static boolean isComplete(final Parse parse) {
+    return AbstractBottomUpParser.TOP_NODE.equals(parse.getType())
+        || isFallback(parse);
+  }
+
+  private static int countTokens(final String sentence) {
+    int tokens = 0;
+    boolean inToken = false;
+    for (int i = 0; i < sentence.length(); i++) {
+      final boolean whitespace = Character.isWhitespace(sentence.charAt(i));
+      if (!whitespace && !inToken) {
+        tokens++;
+      }
+      inToken = !whitespace;
+    }
+    return tokens;
   }
 
 }
\ No newline at end of file
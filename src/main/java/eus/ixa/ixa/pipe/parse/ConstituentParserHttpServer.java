@@ -0,0 +1,346 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import org.jdom2.JDOMException;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP server for constituent parsing based on the HTTP server of the JDK. It
+ * provides the following endpoints:
+ * <ul>
+ * <li>{@code POST /parse}: the body is a NAF document and the response is the
+ * annotated NAF document or the oneline trees, depending on the output
+ * format.</li>
+ * <li>{@code POST /parse/batch}: the body is a JSON array whose elements are
+ * NAF documents (strings) or tokenized sentences (arrays of strings). The
+ * response is a JSON array with the annotated documents and the oneline trees
+ * in the same order. The elements of a batch are parsed in parallel using all
+ * the available cores.</li>
+ * <li>{@code POST /admin/reload}: reloads the model, or switches to the model
+ * file given in the body, without stopping the server. Only accepted from the
+ * local host.</li>
+ * <li>{@code GET /metrics}: the {@link ParserMetrics} in Prometheus text
+ * format. The metrics are also registered in JMX.</li>
+ * </ul>
+ * Requests are handed by the dispatcher thread of the server to a fixed
+ * number of workers through a bounded queue, as in the
+ * {@link ConstituentParserServer}. When the queue is full the request is
+ * answered right away with 503 and no body.
+ *
+ * @author ragerri
+ *
+ */
+public class ConstituentParserHttpServer {
+
+  /**
+   * The annotation output format, one of NAF (default) and oneline penn treebank.
+   */
+  private final String outputFormat;
+  /**
+   * The annotator shared by every request.
+   */
+  private final ReloadableAnnotator annotator;
+  /**
+   * The pool parsing the elements of the batch requests.
+   */
+  private final ExecutorService batchPool;
+  private final Gson gson = new Gson();
+  private final ParserMetrics metrics = ParserMetrics.getDefault();
+  /**
+   * The workers handling the requests.
+   */
+  private final ThreadPoolExecutor httpPool;
+
+  /**
+   * Construct and start a constituent parser HTTP server.
+   *
+   * @param properties
+   *          the properties
+   * @throws IOException
+   *           if the server cannot be started
+   */
+  public ConstituentParserHttpServer(Properties properties) throws IOException {
+
+    int port = Integer.parseInt(properties.getProperty("port"));
+    int workers = Integer.parseInt(properties.getProperty("workers", Flags.DEFAULT_WORKERS));
+    int queueSize = Integer.parseInt(properties.getProperty("queueSize", Flags.DEFAULT_QUEUE_SIZE));
+    outputFormat = properties.getProperty("outputFormat");
+    annotator = new ReloadableAnnotator(properties);
+    if (Boolean.parseBoolean(properties.getProperty("watchModel", "false"))) {
+      annotator.watchModel(Long.parseLong(Flags.DEFAULT_WATCH_QUIET_PERIOD));
+    }
+    batchPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ixa-pipe-parse-batch-%d").build());
+
+    System.out.println("-> Trying to listen port... " + port);
+    HttpServer httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+    httpServer.createContext("/parse", admitted(this::handleParse, true));
+    httpServer.createContext("/parse/batch", admitted(this::handleBatch, true));
+    httpServer.createContext("/admin/reload", admitted(this::handleReload, false));
+    httpServer.createContext("/metrics", admitted(this::handleMetrics, false));
+    httpPool = new ThreadPoolExecutor(workers, workers, 0L,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+        new ThreadFactoryBuilder().setNameFormat("ixa-pipe-parse-http-%d").build(),
+        new ThreadPoolExecutor.AbortPolicy());
+    metrics.setQueueDepth(() -> httpPool.getQueue().size());
+    ParserMetrics.registerMBean();
+    // no executor: the dispatcher thread only hands the exchanges to the workers
+    httpServer.start();
+    System.out.println("-> Connected and listening to port " + port + " (HTTP)");
+  }
+
+  /**
+   * Hands the requests of a handler to the workers, or answers them with 503
+   * if the queue of the workers is full.
+   *
+   * @param handler the handler
+   * @param measured whether the latency and the outcome of the requests are
+   *          recorded in the metrics
+   * @return the handler run by the dispatcher thread
+   */
+  private HttpHandler admitted(HttpHandler handler, boolean measured) {
+    return exchange -> {
+      long receiptTime = System.nanoTime();
+      if (measured) {
+        metrics.requestStarted();
+      }
+      try {
+        httpPool.execute(() -> {
+          try {
+            handler.handle(exchange);
+          } catch (IOException | RuntimeException e) {
+            System.err.println("-> ERROR: Could not answer " + exchange.getRequestURI() + ": " + e.getMessage());
+          } finally {
+            if (measured) {
+              metrics.requestFinished(receiptTime, exchange.getResponseCode() != 200);
+            }
+            exchange.close();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        if (measured) {
+          metrics.requestFinished(receiptTime, true);
+        }
+        // Server busy
+        exchange.sendResponseHeaders(503, -1);
+        exchange.close();
+      }
+    };
+  }
+
+  /**
+   * Sends the metrics.
+   *
+   * @param exchange the HTTP exchange
+   * @throws IOException if io error
+   */
+  private void handleMetrics(HttpExchange exchange) throws IOException {
+    if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+      exchange.getResponseHeaders().set("Allow", "GET");
+      sendResponse(exchange, 405, "text/plain", "-> ERROR: Only GET requests are accepted!!\n");
+      return;
+    }
+    sendResponse(exchange, 200, "text/plain; version=0.0.4", metrics.toText());
+  }
+
+  /**
+   * Annotates one NAF document.
+   *
+   * @param exchange the HTTP exchange
+   * @throws IOException if io error
+   */
+  private void handleParse(HttpExchange exchange) throws IOException {
+    if (!isPost(exchange)) {
+      return;
+    }
+    String document = readBody(exchange);
+    try {
+      String contentType = outputFormat.equalsIgnoreCase("oneline") ? "text/plain" : "application/xml";
+      sendResponse(exchange, 200, contentType, annotator.annotate(document));
+    } catch (JDOMException e) {
+      sendResponse(exchange, 400, "text/plain", "-> ERROR: Badly formatted NAF document!!\n");
+    } catch (IOException | RuntimeException e) {
+      sendResponse(exchange, 400, "text/plain", "-> ERROR: Input data not correct!!\n");
+    }
+  }
+
+  /**
+   * Annotates a JSON array of NAF documents and tokenized sentences in
+   * parallel.
+   *
+   * @param exchange the HTTP exchange
+   * @throws IOException if io error
+   */
+  private void handleBatch(HttpExchange exchange) throws IOException {
+    if (!isPost(exchange)) {
+      return;
+    }
+    JsonArray batch;
+    try {
+      batch = gson.fromJson(readBody(exchange), JsonArray.class);
+    } catch (JsonParseException e) {
+      batch = null;
+    }
+    if (batch == null) {
+      sendResponse(exchange, 400, "text/plain", "-> ERROR: Body must be a JSON array!!\n");
+      return;
+    }
+    // validate every element before parsing any
+    List<Callable<String>> tasks = new ArrayList<>(batch.size());
+    for (JsonElement element : batch) {
+      Callable<String> task = getBatchTask(element);
+      if (task == null) {
+        sendResponse(exchange, 400, "text/plain",
+            "-> ERROR: Batch elements must be NAF documents or arrays of tokens!!\n");
+        return;
+      }
+      tasks.add(task);
+    }
+    List<Future<String>> annotations = new ArrayList<>(tasks.size());
+    JsonArray results = new JsonArray();
+    try {
+      for (Callable<String> task : tasks) {
+        annotations.add(batchPool.submit(task));
+      }
+      for (Future<String> annotation : annotations) {
+        results.add(annotation.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      sendResponse(exchange, 503, "text/plain", "-> ERROR: Server shutting down!!\n");
+      return;
+    } catch (ExecutionException e) {
+      String message = e.getCause() instanceof JDOMException
+          ? "-> ERROR: Badly formatted NAF document!!\n"
+          : "-> ERROR: Input data not correct!!\n";
+      sendResponse(exchange, 400, "text/plain", message);
+      return;
+    } finally {
+      // stop the elements still pending if the batch failed; running ones are
+      // not interrupted, as an interrupt closes the channel of the disk cache
+      for (Future<String> annotation : annotations) {
+        annotation.cancel(false);
+      }
+    }
+    sendResponse(exchange, 200, "application/json", gson.toJson(results));
+  }
+
+  /**
+   * Gets the annotation task of an element of a batch.
+   *
+   * @param element the element
+   * @return the task, or null if the element is neither a NAF document nor an
+   *         array of tokens
+   */
+  private Callable<String> getBatchTask(JsonElement element) {
+    if (element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()) {
+      String document = element.getAsString();
+      return () -> annotator.annotate(document);
+    }
+    if (!element.isJsonArray()) {
+      return null;
+    }
+    JsonArray tokenArray = element.getAsJsonArray();
+    String[] tokens = new String[tokenArray.size()];
+    for (int i = 0; i < tokens.length; i++) {
+      JsonElement token = tokenArray.get(i);
+      if (!token.isJsonPrimitive() || !token.getAsJsonPrimitive().isString()) {
+        return null;
+      }
+      tokens[i] = token.getAsString();
+    }
+    return () -> {
+      try (ReloadableAnnotator.Lease lease = annotator.acquire()) {
+        return lease.getAnnotator().parseToOneline(tokens);
+      }
+    };
+  }
+
+  /**
+   * Reloads the model.
+   *
+   * @param exchange the HTTP exchange
+   * @throws IOException if io error
+   */
+  private void handleReload(HttpExchange exchange) throws IOException {
+    if (!isPost(exchange)) {
+      return;
+    }
+    if (!exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+      sendResponse(exchange, 403, "text/plain", "-> ERROR: Models can only be reloaded from the local host!!\n");
+      return;
+    }
+    String reloadModel = readBody(exchange).trim();
+    try {
+      String modelKey = reloadModel.isEmpty() ? annotator.reload() : annotator.reload(reloadModel);
+      sendResponse(exchange, 200, "text/plain", "-> Reloaded model " + modelKey + "\n");
+    } catch (RuntimeException e) {
+      sendResponse(exchange, 500, "text/plain", "-> ERROR: Could not reload the model: " + e.getMessage() + "\n");
+    }
+  }
+
+  private static boolean isPost(HttpExchange exchange) throws IOException {
+    if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+      exchange.getResponseHeaders().set("Allow", "POST");
+      sendResponse(exchange, 405, "text/plain", "-> ERROR: Only POST requests are accepted!!\n");
+      return false;
+    }
+    return true;
+  }
+
+  private static String readBody(HttpExchange exchange) throws IOException {
+    try (InputStream body = exchange.getRequestBody()) {
+      return new String(ByteStreams.toByteArray(body), StandardCharsets.UTF_8);
+    }
+  }
+
+  private static void sendResponse(HttpExchange exchange, int status, String contentType,
+      String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
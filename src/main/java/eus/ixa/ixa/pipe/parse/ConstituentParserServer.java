@@ -16,102 +16,158 @@
 
 package eus.ixa.ixa.pipe.parse;
 
-import ixa.kaflib.KAFDocument;
 import org.jdom2.JDOMException;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
- * 
+ * TCP server for constituent parsing. One thread accepts the connections and
+ * the requests read from them are handed to a fixed number of annotation
+ * workers through a bounded queue. When the queue is full the request is immediately
+ * answered with a busy message; connections over the maximum are closed right
+ * away. A request whose deadline passes stops being parsed. All the workers
+ * share the same {@link Annotate} object and model, which can be replaced without stopping
+ * the server by watching the model file or by sending {@code <RELOAD>} (or
+ * {@code <RELOAD>path</RELOAD>} to switch to another model file) as the first
+ * line of a line protocol connection from the local host.
+ * <p>
+ * Two protocols are supported on the same port: the line protocol, one
+ * document per connection ended by {@code <ENDOFDOCUMENT>} or
+ * {@code </NAF>}, and the {@link FramedProtocol}, many pipelined documents
+ * over one persistent connection. A framed connection stops being read while
+ * it has as many requests in flight as the maximum, and is closed when a
+ * response cannot be written to it within the write timeout, so that a client
+ * that stops reading cannot hold up the workers.
+ * <p>
+ * The {@link ParserMetrics} are sent to line protocol clients sending
+ * {@code <METRICS>} as the first line and are registered in JMX.
+ *
  * @author ragerri
  *
  */
 public class ConstituentParserServer {
 
   /**
-   * Get dynamically the version of ixa-pipe-parse by looking at the MANIFEST
-   * file.
+   * Sent by the client before the document to set the deadline of the
+   * request in milliseconds, e.g., {@code <DEADLINE>2000</DEADLINE>}.
+   */
+  public static final String DEADLINE_START = "<DEADLINE>";
+  public static final String DEADLINE_END = "</DEADLINE>";
+  /**
+   * Admin command sent by a local client to reload the model.
+   */
+  public static final String RELOAD_START = "<RELOAD>";
+  public static final String RELOAD_END = "</RELOAD>";
+  /**
+   * Command sent by a client to get the {@link ParserMetrics} in text format.
+   */
+  public static final String METRICS = "<METRICS>";
+  /**
+   * The default deadline of every request in milliseconds, counted from the
+   * moment the request is received; 0 means no deadline.
+   */
+  private long deadline;
+  /**
+   * The maximum number of requests of a framed connection being annotated or
+   * answered at the same time.
    */
-  private final String version = CLI.class.getPackage().getImplementationVersion();
+  private int maxInFlight;
   /**
-   * Get the git commit of the ixa-pipe-parse compiled by looking at the MANIFEST
-   * file.
+   * The time in milliseconds a response may take to be written before the
+   * connection is closed.
    */
-  private final String commit = CLI.class.getPackage().getSpecificationVersion();
+  private long writeTimeout;
   /**
-   * The model.
+   * The annotation workers.
    */
-  private String model;
+  private ThreadPoolExecutor workerPool;
   /**
-   * The annotation output format, one of NAF (default) and oneline penn treebank.
+   * Cancels the framed requests whose deadline passes before they are annotated
+   * and closes the connections whose responses stall.
    */
-  private String outputFormat;
-  
+  private ScheduledThreadPoolExecutor deadlineTimer;
   /**
-   * Construct a NameFinder server.
-   * 
+   * Reads and writes the client connections, one thread per connection.
+   */
+  private ThreadPoolExecutor connectionPool;
+  private final ParserMetrics metrics = ParserMetrics.getDefault();
+
+  /**
+   * Construct a constituent parser server.
+   *
    * @param properties
    *          the properties
    */
   @SuppressWarnings("InfiniteLoopStatement") public ConstituentParserServer(Properties properties) {
 
     int port = Integer.parseInt(properties.getProperty("port"));
-    model = properties.getProperty("model");
-    outputFormat = properties.getProperty("outputFormat");
-    
-    String kafToString;
+    int workers = Integer.parseInt(properties.getProperty("workers", Flags.DEFAULT_WORKERS));
+    int queueSize = Integer.parseInt(properties.getProperty("queueSize", Flags.DEFAULT_QUEUE_SIZE));
+    int maxConnections = Integer.parseInt(properties.getProperty("maxConnections",
+        Flags.DEFAULT_MAX_CONNECTIONS));
+    deadline = Long.parseLong(properties.getProperty("deadline", Flags.DEFAULT_DEADLINE));
+    maxInFlight = Integer.parseInt(properties.getProperty("maxInFlight", Flags.DEFAULT_MAX_IN_FLIGHT));
+    writeTimeout = Long.parseLong(properties.getProperty("writeTimeout", Flags.DEFAULT_WRITE_TIMEOUT));
+
     ServerSocket socketServer = null;
-    Socket activeSocket;
-    BufferedReader inFromClient;
-    BufferedWriter outToClient = null;
+    workerPool = new ThreadPoolExecutor(workers, workers, 0L,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+        new ThreadFactoryBuilder().setNameFormat("ixa-pipe-parse-worker-%d").build(),
+        new ThreadPoolExecutor.AbortPolicy());
+    deadlineTimer = new ScheduledThreadPoolExecutor(1,
+        new ThreadFactoryBuilder().setNameFormat("ixa-pipe-parse-deadline-%d").setDaemon(true).build());
+    deadlineTimer.setRemoveOnCancelPolicy(true);
+    metrics.setQueueDepth(() -> workerPool.getQueue().size());
+    ParserMetrics.registerMBean();
+    // connection threads only read and write, the annotation is done by the workers
+    connectionPool = new ThreadPoolExecutor(0, maxConnections, 60L,
+        TimeUnit.SECONDS, new SynchronousQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("ixa-pipe-parse-connection-%d").build(),
+        new ThreadPoolExecutor.AbortPolicy());
 
     try {
-      Annotate annotator = new Annotate(properties);
+      ReloadableAnnotator annotator = new ReloadableAnnotator(properties);
+      if (Boolean.parseBoolean(properties.getProperty("watchModel", "false"))) {
+        annotator.watchModel(Long.parseLong(Flags.DEFAULT_WATCH_QUIET_PERIOD));
+      }
       System.out.println("-> Trying to listen port... " + port);
       socketServer = new ServerSocket(port);
-      System.out.println("-> Connected and listening to port " + port);
+      System.out.println("-> Connected and listening to port " + port + " with "
+          + workers + " workers");
       while (true) {
-        try {
-          activeSocket = socketServer.accept();
-          inFromClient = new BufferedReader(new InputStreamReader(activeSocket.getInputStream(),
-              StandardCharsets.UTF_8));
-          outToClient = new BufferedWriter(new OutputStreamWriter(activeSocket.getOutputStream(),
-              StandardCharsets.UTF_8));
-          //get data from client
-          String stringFromClient = getClientData(inFromClient);
-          // annotate
-          kafToString = getAnnotations(annotator, stringFromClient);
-        } catch (JDOMException e) {
-          kafToString = "\n-> ERROR: Badly formatted NAF document!!\n";
-          sendDataToClient(outToClient, kafToString);
-          continue;
-        } catch (UnsupportedEncodingException e) {
-          kafToString = "\n-> ERROR: UTF-8 not supported!!\n";
-          assert outToClient != null;
-          sendDataToClient(outToClient, kafToString);
-          continue;
-        } catch (IOException e) {
-          kafToString = "\n -> ERROR: Input data not correct!!\n";
-          assert outToClient != null;
-          sendDataToClient(outToClient, kafToString);
-          continue;
-        }
-        //send data to server after all exceptions and close the outToClient
-        sendDataToClient(outToClient, kafToString);
-        //close the resources
-        inFromClient.close();
-        activeSocket.close();
+        Socket activeSocket = socketServer.accept();
+        acceptConnection(annotator, activeSocket);
       } //end of processing block
     } catch (IOException e) {
       e.printStackTrace();
       System.err.println("-> IOException due to failing to create the TCP socket or to wrongly provided model path.");
     } finally {
       System.out.println("closing tcp socket...");
+      connectionPool.shutdown();
+      workerPool.shutdown();
+      deadlineTimer.shutdown();
       try {
         assert socketServer != null;
         socketServer.close();
@@ -120,31 +176,454 @@ public class ConstituentParserServer {
       }
     }
   }
-  
+
+  /**
+   * Hand a client connection to a connection thread, or close it if there are
+   * already as many connections as the maximum.
+   *
+   * @param annotator the shared annotator
+   * @param activeSocket the client socket
+   */
+  private void acceptConnection(ReloadableAnnotator annotator, Socket activeSocket) {
+    try {
+      connectionPool.execute(() -> processConnection(annotator, activeSocket));
+    } catch (RejectedExecutionException e) {
+      try {
+        activeSocket.close();
+      } catch (IOException closeException) {
+        closeException.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Choose the protocol of a client connection by looking at its first bytes
+   * and process it.
+   *
+   * @param annotator the shared annotator
+   * @param activeSocket the client socket
+   */
+  private void processConnection(ReloadableAnnotator annotator, Socket activeSocket) {
+    try (Socket socket = activeSocket) {
+      BufferedInputStream inFromClient = new BufferedInputStream(socket.getInputStream());
+      inFromClient.mark(FramedProtocol.MAGIC.length);
+      byte[] header = new byte[FramedProtocol.MAGIC.length];
+      int read = 0;
+      int count;
+      while (read < header.length
+          && (count = inFromClient.read(header, read, header.length - read)) != -1) {
+        read += count;
+      }
+      if (read == header.length && Arrays.equals(header, FramedProtocol.MAGIC)) {
+        processFramedClient(annotator, socket, inFromClient);
+      } else {
+        inFromClient.reset();
+        processLineClient(annotator, socket, inFromClient);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Read, annotate and answer one document sent with the line protocol.
+   *
+   * @param annotator the shared annotator
+   * @param socket the client socket
+   * @param inputStream the input stream of the socket
+   * @throws IOException if io error
+   */
+  private void processLineClient(ReloadableAnnotator annotator, Socket socket, InputStream inputStream)
+      throws IOException {
+    BufferedReader inFromClient = new BufferedReader(new InputStreamReader(inputStream,
+        StandardCharsets.UTF_8));
+    BufferedWriter outToClient = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+        StandardCharsets.UTF_8));
+    long receiptTime = System.nanoTime();
+    String kafToString;
+    try {
+      //get data from client
+      LineRequest request = getClientData(inFromClient);
+      if (request.reloadModel != null) {
+        kafToString = reloadModel(annotator, socket, request.reloadModel);
+      } else if (request.metricsRequest) {
+        kafToString = metrics.toText();
+      } else {
+        metrics.requestStarted();
+        boolean failed = true;
+        try {
+          Future<String> annotation = workerPool.submit(() ->
+              annotateRequest(annotator, request.document, receiptTime, request.deadline));
+          kafToString = awaitAnnotation(annotation, receiptTime, request.deadline);
+          failed = false;
+        } finally {
+          metrics.requestFinished(receiptTime, failed);
+        }
+      }
+    } catch (RejectedExecutionException e) {
+      kafToString = "\n-> ERROR: Server busy, try again later!!\n";
+    } catch (NumberFormatException e) {
+      kafToString = "\n -> ERROR: Input data not correct!!\n";
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } catch (ExecutionException e) {
+      kafToString = getErrorMessage(e.getCause());
+    } catch (TimeoutException e) {
+      kafToString = getErrorMessage(e);
+    }
+    //send data to client after all exceptions
+    sendDataToClient(outToClient, kafToString);
+  }
+
+  /**
+   * Read the pipelined requests of a framed connection until the client
+   * closes it, answering each one as soon as it is annotated. The next request
+   * is only read when fewer than the maximum are in flight.
+   *
+   * @param annotator the shared annotator
+   * @param socket the client socket
+   * @param inputStream the input stream of the socket
+   * @throws IOException if io error
+   */
+  private void processFramedClient(ReloadableAnnotator annotator, Socket socket, InputStream inputStream)
+      throws IOException {
+    DataInputStream inFromClient = new DataInputStream(inputStream);
+    FramedConnection connection = new FramedConnection(socket);
+    try {
+      FramedProtocol.Request request;
+      while (connection.acquire() && (request = FramedProtocol.readRequest(inFromClient)) != null) {
+        long receiptTime = System.nanoTime();
+        String document = new String(request.payload, StandardCharsets.UTF_8);
+        long requestDeadline = request.deadline > 0 ? request.deadline : deadline;
+        connection.inFlight.register();
+        metrics.requestStarted();
+        FramedAnnotation annotation = new FramedAnnotation(() ->
+            annotateRequest(annotator, document, receiptTime, requestDeadline),
+            connection, request.requestId, receiptTime);
+        try {
+          workerPool.execute(annotation);
+          if (requestDeadline > 0) {
+            annotation.expireAt(requestDeadline);
+          }
+        } catch (RejectedExecutionException e) {
+          metrics.requestFinished(receiptTime, true);
+          try {
+            sendFrameToClient(connection, request.requestId, FramedProtocol.STATUS_BUSY,
+                "\n-> ERROR: Server busy, try again later!!\n");
+          } finally {
+            connection.release();
+          }
+        }
+      }
+    } finally {
+      // wait for the responses still being annotated before closing
+      connection.awaitResponses();
+    }
+  }
+
+  /**
+   * Send a response frame to the client. Responses of the same connection
+   * are written by several workers, so the writes are serialized; a write
+   * that does not finish within the write timeout closes the connection, which
+   * makes it and the following ones fail.
+   * @param connection the framed connection
+   * @param requestId the id of the request
+   * @param status the status of the response
+   * @param kafToString the annotation or the error message
+   */
+  private void sendFrameToClient(FramedConnection connection, int requestId, byte status,
+      String kafToString) {
+    FramedProtocol.Response response = new FramedProtocol.Response(requestId, status,
+        kafToString.getBytes(StandardCharsets.UTF_8));
+    try {
+      synchronized (connection.outToClient) {
+        ScheduledFuture<?> stall = deadlineTimer.schedule(connection::closeStalled, writeTimeout,
+            TimeUnit.MILLISECONDS);
+        try {
+          FramedProtocol.writeResponse(connection.outToClient, response);
+          connection.outToClient.flush();
+        } finally {
+          stall.cancel(false);
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("-> Could not send response " + requestId + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * A framed connection: its output stream and the requests in flight.
+   */
+  private final class FramedConnection {
+    private final Socket socket;
+    private final DataOutputStream outToClient;
+    /**
+     * The reader thread is a party until the client closes the connection and
+     * every request in flight until it is answered.
+     */
+    private final Phaser inFlight = new Phaser(1);
+    private final Semaphore permits = new Semaphore(maxInFlight);
+
+    FramedConnection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.outToClient = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Wait until fewer than the maximum requests are in flight before reading
+     * the next one.
+     * @return false if interrupted
+     */
+    boolean acquire() {
+      try {
+        permits.acquire();
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    /**
+     * Count a request as answered.
+     */
+    void release() {
+      inFlight.arriveAndDeregister();
+      permits.release();
+    }
+
+    void awaitResponses() {
+      inFlight.arriveAndAwaitAdvance();
+    }
+
+    void closeStalled() {
+      System.err.println("-> Closing connection whose responses stalled for " + writeTimeout + " ms");
+      try {
+        socket.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Wait for the annotation of a line request until its deadline. The
+   * annotation stops by itself at the deadline; it is not interrupted, as an
+   * interrupt closes the channel of the persistent parse cache.
+   * @param annotation the annotation submitted to the workers
+   * @param receiptTime the nano time at which the request was received
+   * @param requestDeadline the deadline in milliseconds, 0 for no deadline
+   * @return the annotation result
+   * @throws InterruptedException if interrupted while waiting
+   * @throws ExecutionException if the annotation failed
+   * @throws TimeoutException if the deadline passed before the annotation finished
+   */
+  private static String awaitAnnotation(Future<String> annotation, long receiptTime,
+      long requestDeadline) throws InterruptedException, ExecutionException, TimeoutException {
+    if (requestDeadline <= 0) {
+      return annotation.get();
+    }
+    long remaining = TimeUnit.MILLISECONDS.toNanos(requestDeadline) - (System.nanoTime() - receiptTime);
+    try {
+      return annotation.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      annotation.cancel(false);
+      throw e;
+    }
+  }
+
   /**
-   * Read data from the client and output to a String.
+   * The annotation of a framed request. It is answered exactly once: by the
+   * worker when the annotation finishes, or with a deadline error when the
+   * deadline timer cancels it first.
+   */
+  private final class FramedAnnotation extends FutureTask<String> {
+    private final FramedConnection connection;
+    private final int requestId;
+    private final long receiptTime;
+    private volatile ScheduledFuture<?> timer;
+
+    FramedAnnotation(Callable<String> annotation, FramedConnection connection, int requestId,
+        long receiptTime) {
+      super(annotation);
+      this.connection = connection;
+      this.requestId = requestId;
+      this.receiptTime = receiptTime;
+    }
+
+    /**
+     * Cancel the annotation and answer with a deadline error if it has not
+     * finished when the deadline of the request passes; a running annotation
+     * stops by itself at the deadline.
+     * @param requestDeadline the deadline in milliseconds
+     */
+    void expireAt(long requestDeadline) {
+      long remaining = TimeUnit.MILLISECONDS.toNanos(requestDeadline) - (System.nanoTime() - receiptTime);
+      timer = deadlineTimer.schedule(() -> {
+        if (cancel(false)) {
+          answer(FramedProtocol.STATUS_ERROR, getErrorMessage(new TimeoutException()));
+        }
+      }, Math.max(0, remaining), TimeUnit.NANOSECONDS);
+      if (isDone()) {
+        timer.cancel(false);
+      }
+    }
+
+    @Override
+    protected void done() {
+      if (isCancelled()) {
+        // answered by the deadline timer
+        return;
+      }
+      ScheduledFuture<?> expiry = timer;
+      if (expiry != null) {
+        expiry.cancel(false);
+      }
+      try {
+        answer(FramedProtocol.STATUS_OK, get());
+      } catch (ExecutionException e) {
+        answer(FramedProtocol.STATUS_ERROR, getErrorMessage(e.getCause()));
+      } catch (InterruptedException e) {
+        // done, get does not block
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void answer(byte status, String kafToString) {
+      try {
+        sendFrameToClient(connection, requestId, status, kafToString);
+        metrics.requestFinished(receiptTime, status != FramedProtocol.STATUS_OK);
+      } finally {
+        connection.release();
+      }
+    }
+  }
+
+  /**
+   * Maps an annotation error to the message sent to the client.
+   * @param e the error
+   * @return the error message
+   */
+  private static String getErrorMessage(Throwable e) {
+    if (e instanceof TimeoutException) {
+      return "\n-> ERROR: Deadline exceeded!!\n";
+    } else if (e instanceof JDOMException) {
+      return "\n-> ERROR: Badly formatted NAF document!!\n";
+    } else if (e instanceof UnsupportedEncodingException) {
+      return "\n-> ERROR: UTF-8 not supported!!\n";
+    } else {
+      return "\n -> ERROR: Input data not correct!!\n";
+    }
+  }
+
+  /**
+   * Checks whether the deadline of a request has passed.
+   * @param receiptTime the nano time at which the request was received
+   * @param requestDeadline the deadline in milliseconds, 0 for no deadline
+   * @return true if the deadline has passed
+   */
+  private static boolean isExpired(long receiptTime, long requestDeadline) {
+    return requestDeadline > 0
+        && System.nanoTime() - receiptTime > TimeUnit.MILLISECONDS.toNanos(requestDeadline);
+  }
+
+  /**
+   * A request of the line protocol.
+   */
+  private static final class LineRequest {
+    private long deadline;
+    private String document;
+    /**
+     * The model to reload, empty for the current one; null if the request
+     * is not a reload command.
+     */
+    private String reloadModel;
+    /**
+     * Whether the request asks for the metrics.
+     */
+    private boolean metricsRequest;
+  }
+
+  /**
+   * Reload the model on request of a client; only allowed from the local host.
+   * @param annotator the annotator holder
+   * @param socket the client socket
+   * @param reloadModel the model to switch to, empty for the current one
+   * @return the message for the client
+   */
+  private String reloadModel(ReloadableAnnotator annotator, Socket socket, String reloadModel) {
+    if (!socket.getInetAddress().isLoopbackAddress()) {
+      return "\n-> ERROR: Models can only be reloaded from the local host!!\n";
+    }
+    try {
+      String modelKey = reloadModel.isEmpty() ? annotator.reload() : annotator.reload(reloadModel);
+      return "\n-> Reloaded model " + modelKey + "\n";
+    } catch (RuntimeException e) {
+      return "\n-> ERROR: Could not reload the model: " + e.getMessage() + "\n";
+    }
+  }
+
+  /**
+   * Read data from the client. An optional first line with the deadline of
+   * the request overrides the server default; a first line with the reload
+   * or the metrics command makes it a reload or a metrics request.
    * @param inFromClient the client inputstream
-   * @return the string from the client
+   * @return the request from the client
    */
-  private String getClientData(BufferedReader inFromClient) {
+  private LineRequest getClientData(BufferedReader inFromClient) {
+    LineRequest request = new LineRequest();
+    request.deadline = deadline;
     StringBuilder stringFromClient = new StringBuilder();
     try {
       String line;
+      boolean firstLine = true;
       while ((line = inFromClient.readLine()) != null) {
-        if (line.matches("<ENDOFDOCUMENT>")) {
+        if (firstLine && line.startsWith(DEADLINE_START)) {
+          request.deadline = parseDeadline(line);
+          firstLine = false;
+          continue;
+        }
+        if (firstLine && line.startsWith(RELOAD_START)) {
+          request.reloadModel = line.substring(RELOAD_START.length()).replace(RELOAD_END, "").trim();
+          break;
+        }
+        if (firstLine && line.startsWith(METRICS)) {
+          request.metricsRequest = true;
+          break;
+        }
+        firstLine = false;
+        if (line.equals("<ENDOFDOCUMENT>")) {
           break;
         }
         stringFromClient.append(line).append("\n");
-        if (line.matches("</NAF>")) {
+        if (line.equals("</NAF>")) {
           break;
         }
       }
     }catch (IOException e) {
       e.printStackTrace();
     }
-    return stringFromClient.toString();
+    request.document = stringFromClient.toString();
+    return request;
   }
-  
+
+  /**
+   * Parse the deadline header of a request.
+   * @param line the first line of the request, starting with the deadline tag
+   * @return the deadline in milliseconds
+   * @throws NumberFormatException if the header is malformed or truncated
+   */
+  private static long parseDeadline(String line) {
+    String header = line.trim();
+    if (!header.endsWith(DEADLINE_END)
+        || header.length() < DEADLINE_START.length() + DEADLINE_END.length()) {
+      throw new NumberFormatException("Malformed deadline header: " + line);
+    }
+    return Long.parseLong(header.substring(DEADLINE_START.length(),
+        header.length() - DEADLINE_END.length()).trim());
+  }
+
   /**
    * Send data back to server after annotation.
    * @param outToClient the outputstream to the client
@@ -157,37 +636,37 @@ public class ConstituentParserServer {
   }
 
   /**
-   * Named Entity annotator.
-   * 
+   * Annotate a request in a worker until its deadline passes.
+   *
    * @param annotator
    *          the annotator
    * @param stringFromClient
    *          the string to be annotated
+   * @param receiptTime
+   *          the nano time at which the request was received
+   * @param requestDeadline
+   *          the deadline in milliseconds, 0 for no deadline
    * @return the annotation result
    * @throws IOException
    *           if io error
    * @throws JDOMException
    *           if xml error
+   * @throws TimeoutException
+   *           if the deadline passed before the request was annotated
    */
-  private String getAnnotations(Annotate annotator, String stringFromClient)
-      throws IOException, JDOMException {
-    // get a breader from the string coming from the client
-    BufferedReader clientReader = new BufferedReader(new StringReader(
-        stringFromClient));
-    KAFDocument kaf = KAFDocument.createFromStream(clientReader);
-    final KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(
-        "constituency",
-        "ixa-pipe-parse-" + Paths.get(model).getFileName(), this.version
-            + "-" + this.commit);
-    newLp.setBeginTimestamp();
-    String kafToString;
-    if (outputFormat.equalsIgnoreCase("oneline")) {
-      kafToString = annotator.parseToOneline(kaf);
-    } else {
-      annotator.parseToKAF(kaf);
-      newLp.setEndTimestamp();
-      kafToString = kaf.toString();
+  private String annotateRequest(ReloadableAnnotator annotator, String stringFromClient,
+      long receiptTime, long requestDeadline)
+      throws IOException, JDOMException, TimeoutException {
+    if (isExpired(receiptTime, requestDeadline)) {
+      throw new TimeoutException();
+    }
+    long deadlineTime = requestDeadline > 0
+        ? receiptTime + TimeUnit.MILLISECONDS.toNanos(requestDeadline)
+        : ConstituentParser.NO_DEADLINE;
+    try {
+      return annotator.annotate(stringFromClient, deadlineTime);
+    } catch (CancellationException e) {
+      throw new TimeoutException();
     }
-    return kafToString;
   }
 }
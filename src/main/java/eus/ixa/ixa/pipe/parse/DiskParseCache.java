@@ -0,0 +1,803 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import opennlp.tools.parser.Parse;
+import opennlp.tools.util.Span;
+
+/**
+ * Persistent cache of parse results shared by runs and by the parser
+ * processes of a host. There is one file per model in the cache directory,
+ * named after the hash of the model key, i.e., the canonical path and
+ * checksum of the model file; when the model file changes a new cache is
+ * started and the cache of the previous model is deleted once no process
+ * has it open.
+ * <p>
+ * The file starts with a header identifying the model followed by records
+ * that are only appended, each holding the hash of the sentence and the
+ * serialized trees:
+ *
+ * <pre>
+ * header: "IXAC" int version, UTF model key
+ * record: int length, long hash, long hash, bytes trees, int crc32
+ * </pre>
+ *
+ * The trees keep the heads of their nodes. A file written with another
+ * version of the format is emptied when opened.
+ *
+ * The file is indexed in memory by sentence hash and its records read with
+ * positional reads; records appended by other processes are indexed when a
+ * sentence is not found, at most once per refresh interval. Appends are
+ * serialized across processes with a file lock. When the file grows over its
+ * maximum size it is compacted, keeping the most recent half of the distinct
+ * records, into a new file that atomically replaces the old one. Every
+ * process using a cache holds a shared lock on a companion lock file, which
+ * is not replaced by compactions, so that stale caches are only deleted when
+ * unused.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+public class DiskParseCache implements AutoCloseable {
+
+  /**
+   * Separates the model key from the options changing the parse results,
+   * e.g., the beam policy, in the key of a cache.
+   */
+  public static final String OPTIONS_SEPARATOR = "?";
+  /**
+   * The maximum size of the file.
+   */
+  public static final long MAX_BYTES = Integer.MAX_VALUE;
+  /**
+   * The default time between two looks for records appended by other
+   * processes.
+   */
+  public static final long REFRESH_INTERVAL_MILLIS = 1000;
+  private static final byte[] MAGIC = "IXAC".getBytes(StandardCharsets.US_ASCII);
+  private static final int VERSION = 2;
+  private static final String EXTENSION = ".parses";
+  private static final String LOCK_EXTENSION = ".lock";
+  /**
+   * The length, hashes and checksum of a record.
+   */
+  private static final int RECORD_OVERHEAD = 4 + 16 + 4;
+
+  private final Path cacheFile;
+  private final String modelKey;
+  private final long maxBytes;
+  private final long refreshInterval;
+  /**
+   * Offset of every record by sentence hash.
+   */
+  private final Map<HashCode, Long> index = new ConcurrentHashMap<>();
+  /**
+   * File locks are held by the whole JVM and cannot be taken twice on a file,
+   * so the instances using the same file, e.g., before and after a model
+   * reload, synchronize on and share the in-use lock of one object per file.
+   */
+  private static final Map<Path, SharedFile> sharedFiles = new ConcurrentHashMap<>();
+  private final SharedFile shared;
+  /**
+   * The open file; it is only replaced, never cleared, so readers take it
+   * once per lookup without the monitor.
+   */
+  private volatile FileChannel channel;
+  /**
+   * The identity of the open file, to notice when another process has
+   * replaced it.
+   */
+  private Object fileKey;
+  /**
+   * End of the last record indexed.
+   */
+  private long indexedLength;
+  private volatile long lastRefresh;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * The instances of this JVM using a cache file and the shared lock they hold
+   * on its lock file while any of them is open.
+   */
+  private static final class SharedFile {
+    private int users;
+    private FileChannel lockChannel;
+  }
+
+  /**
+   * Opens the cache of a model, creating it if it does not exist.
+   *
+   * @param cacheDir
+   *          the cache directory
+   * @param modelKey
+   *          the key of the model in the {@link ModelRegistry}, followed by
+   *          the {@link #OPTIONS_SEPARATOR} and the parsing options, if any
+   * @param maxBytes
+   *          the size of the file that triggers a compaction, at most
+   *          {@link #MAX_BYTES}
+   * @throws IOException
+   *           if the cache cannot be opened
+   * @throws IllegalArgumentException
+   *           if the size is not positive or over {@link #MAX_BYTES}
+   */
+  public DiskParseCache(final Path cacheDir, final String modelKey,
+      final long maxBytes) throws IOException {
+    this(cacheDir, modelKey, maxBytes, REFRESH_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Opens the cache of a model, creating it if it does not exist.
+   *
+   * @param cacheDir
+   *          the cache directory
+   * @param modelKey
+   *          the key of the model in the {@link ModelRegistry}, followed by
+   *          the {@link #OPTIONS_SEPARATOR} and the parsing options, if any
+   * @param maxBytes
+   *          the size of the file that triggers a compaction, at most
+   *          {@link #MAX_BYTES}
+   * @param refreshIntervalMillis
+   *          the time between two looks for records appended by other
+   *          processes
+   * @throws IOException
+   *           if the cache cannot be opened
+   * @throws IllegalArgumentException
+   *           if the size is not positive or over {@link #MAX_BYTES}
+   */
+  DiskParseCache(final Path cacheDir, final String modelKey,
+      final long maxBytes, final long refreshIntervalMillis)
+      throws IOException {
+    if (maxBytes <= 0 || maxBytes > MAX_BYTES) {
+      throw new IllegalArgumentException("The size of the parse cache must be "
+          + "between 1 and " + MAX_BYTES + " bytes: " + maxBytes);
+    }
+    this.modelKey = modelKey;
+    this.maxBytes = maxBytes;
+    this.refreshInterval = TimeUnit.MILLISECONDS.toNanos(refreshIntervalMillis);
+    Files.createDirectories(cacheDir);
+    this.cacheFile = cacheDir.resolve(Hashing.murmur3_128()
+        .hashString(modelKey, StandardCharsets.UTF_8) + EXTENSION);
+    this.shared = getSharedFile(this.cacheFile);
+    synchronized (this.shared) {
+      retain();
+      try {
+        open();
+        if (this.channel.size() > this.maxBytes) {
+          compact();
+        }
+      } catch (final IOException e) {
+        if (this.channel != null) {
+          this.channel.close();
+        }
+        release();
+        throw e;
+      }
+    }
+    deleteStaleCaches(cacheDir);
+  }
+
+  /**
+   * Gets the parses of a sentence.
+   *
+   * @param sentence
+   *          the key of the token sequence, as given by
+   *          {@link ConstituentParser#getCacheSentence(String[])}
+   * @param numParses
+   *          the number of parses
+   * @return the parses or null if the sentence is not in the cache
+   */
+  public Parse[] get(final String sentence, final int numParses) {
+    final HashCode hash = hash(sentence, numParses);
+    Long offset = this.index.get(hash);
+    if (offset == null
+        && System.nanoTime() - this.lastRefresh >= this.refreshInterval) {
+      synchronized (this.shared) {
+        try {
+          // another thread may have refreshed while this one waited
+          if (System.nanoTime() - this.lastRefresh >= this.refreshInterval) {
+            refresh();
+          }
+        } catch (final IOException e) {
+          System.err.println("-> ERROR: Could not read the parse cache "
+              + this.cacheFile + ": " + e.getMessage() + "!!");
+        }
+      }
+      offset = this.index.get(hash);
+    }
+    if (offset == null) {
+      this.misses.increment();
+      return null;
+    }
+    final FileChannel reader = this.channel;
+    try {
+      final Parse[] parses = readRecord(reader, hash, offset);
+      if (parses != null) {
+        this.hits.increment();
+        return parses;
+      }
+    } catch (final IOException e) {
+      // the channel was closed by a reopen meanwhile
+    }
+    // the file was compacted by another process meanwhile
+    this.index.remove(hash, offset);
+    this.misses.increment();
+    return null;
+  }
+
+  /**
+   * Appends the parses of a sentence.
+   *
+   * @param sentence
+   *          the key of the token sequence, as given by
+   *          {@link ConstituentParser#getCacheSentence(String[])}
+   * @param numParses
+   *          the number of parses
+   * @param parses
+   *          the parses
+   */
+  public void put(final String sentence, final int numParses,
+      final Parse[] parses) {
+    final HashCode hash = hash(sentence, numParses);
+    final byte[] record;
+    try {
+      record = toRecord(hash, writeParses(parses));
+    } catch (final IOException e) {
+      throw new IllegalStateException(e);
+    }
+    synchronized (this.shared) {
+      try {
+        append(hash, record);
+      } catch (final IOException e) {
+        System.err.println("-> ERROR: Could not write to the parse cache "
+            + this.cacheFile + ": " + e.getMessage() + "!!");
+      }
+    }
+  }
+
+  /**
+   * @return the number of sentences found in the cache
+   */
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  /**
+   * @return the number of sentences not found in the cache
+   */
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * @return the statistics in a readable form
+   */
+  @Override
+  public String toString() {
+    return "hits " + getHits() + ", misses " + getMisses() + ", sentences "
+        + this.index.size() + ", file " + this.cacheFile;
+  }
+
+  @Override
+  public void close() {
+    synchronized (this.shared) {
+      try {
+        this.channel.close();
+      } catch (final IOException e) {
+        System.err.println("-> ERROR: Could not close the parse cache "
+            + this.cacheFile + "!!");
+      }
+      release();
+    }
+  }
+
+  private HashCode hash(final String sentence, final int numParses) {
+    return Hashing.murmur3_128().newHasher()
+        .putString(this.modelKey, StandardCharsets.UTF_8).putInt(numParses)
+        .putString(sentence, StandardCharsets.UTF_8)
+        .hash();
+  }
+
+  private static SharedFile getSharedFile(final Path cache) {
+    return sharedFiles.computeIfAbsent(cache.toAbsolutePath(),
+        path -> new SharedFile());
+  }
+
+  private static Path getLockFile(final Path cache) {
+    return Paths.get(cache + LOCK_EXTENSION);
+  }
+
+  /**
+   * Takes the shared in-use lock of the file if this is its first user in the
+   * JVM; called holding the monitor of the shared file.
+   */
+  private void retain() throws IOException {
+    if (this.shared.users == 0) {
+      final FileChannel lockChannel = FileChannel.open(
+          getLockFile(this.cacheFile), StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+        lockChannel.lock(0, Long.MAX_VALUE, true);
+      } catch (final IOException e) {
+        lockChannel.close();
+        throw e;
+      }
+      this.shared.lockChannel = lockChannel;
+    }
+    this.shared.users++;
+  }
+
+  /**
+   * Releases the in-use lock of the file if this was its last user in the
+   * JVM; called holding the monitor of the shared file.
+   */
+  private void release() {
+    if (--this.shared.users == 0) {
+      try {
+        // closing the channel releases its lock
+        this.shared.lockChannel.close();
+      } catch (final IOException e) {
+        System.err.println("-> ERROR: Could not unlock the parse cache "
+            + this.cacheFile + "!!");
+      }
+      this.shared.lockChannel = null;
+    }
+  }
+
+  /**
+   * Deletes the caches of previous versions of the model, whatever their
+   * parsing options. A cache is only deleted holding an exclusive lock on its
+   * lock file, so caches open in this or another process are skipped and
+   * deleted by a later run.
+   */
+  private void deleteStaleCaches(final Path cacheDir) throws IOException {
+    final String modelVersion = getModelVersion(this.modelKey);
+    final String modelPath = modelVersion.substring(0,
+        modelVersion.lastIndexOf('#') + 1);
+    try (DirectoryStream<Path> caches = Files.newDirectoryStream(cacheDir, "*"
+        + EXTENSION)) {
+      for (final Path cache : caches) {
+        if (cache.equals(this.cacheFile)) {
+          continue;
+        }
+        final String cacheModelKey = readModelKey(cache);
+        if (cacheModelKey != null && cacheModelKey.startsWith(modelPath)
+            && !getModelVersion(cacheModelKey).equals(modelVersion)
+            && deleteIfUnused(cache)) {
+          System.err.println("-> Deleted parse cache of previous model "
+              + cacheModelKey);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the cache was deleted, false if it is in use or could not
+   *         be deleted
+   */
+  private static boolean deleteIfUnused(final Path cache) {
+    final SharedFile cacheShared = getSharedFile(cache);
+    synchronized (cacheShared) {
+      if (cacheShared.users > 0) {
+        return false;
+      }
+      final Path lockFile = getLockFile(cache);
+      try (FileChannel lockChannel = FileChannel.open(lockFile,
+          StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE)) {
+        try (FileLock lock = lockChannel.tryLock()) {
+          if (lock == null) {
+            return false;
+          }
+          Files.delete(cache);
+          Files.deleteIfExists(lockFile);
+          return true;
+        }
+      } catch (final IOException | OverlappingFileLockException e) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @param key
+   *          the key of a cache
+   * @return the key of the model, without the parsing options
+   */
+  private static String getModelVersion(final String key) {
+    final int options = key.indexOf(OPTIONS_SEPARATOR, key.lastIndexOf('#'));
+    return options < 0 ? key : key.substring(0, options);
+  }
+
+  private static String readModelKey(final Path cache) {
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(cache))) {
+      final byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        return null;
+      }
+      // the caches of previous models are deleted whatever their version
+      in.readInt();
+      return in.readUTF();
+    } catch (final IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Opens the cache file, writing the header if it is new, and indexes it.
+   * The new channel replaces the previous one, which is closed afterwards.
+   */
+  private void open() throws IOException {
+    final FileChannel previous = this.channel;
+    final FileChannel opened = FileChannel.open(this.cacheFile,
+        StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    final byte[] header = header();
+    try {
+      final FileLock lock = opened.lock();
+      try {
+        if (opened.size() == 0 || !hasHeader(opened, header)) {
+          opened.truncate(0);
+          opened.write(ByteBuffer.wrap(header), 0);
+        }
+      } finally {
+        lock.release();
+      }
+      this.fileKey = Files.readAttributes(this.cacheFile,
+          BasicFileAttributes.class).fileKey();
+    } catch (final IOException e) {
+      opened.close();
+      throw e;
+    }
+    this.index.clear();
+    this.indexedLength = header.length;
+    this.channel = opened;
+    if (previous != null) {
+      previous.close();
+    }
+    refresh();
+  }
+
+  /**
+   * @return whether the file starts with the header, i.e., it is written with
+   *         this version of the format
+   */
+  private static boolean hasHeader(final FileChannel file, final byte[] header)
+      throws IOException {
+    final ByteBuffer fileHeader = ByteBuffer.allocate(header.length);
+    return read(file, fileHeader, 0)
+        && Arrays.equals(fileHeader.array(), header);
+  }
+
+  private byte[] header() throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.write(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(this.modelKey);
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Reads from a position until the buffer is full.
+   *
+   * @return false if the file ends before
+   */
+  private static boolean read(final FileChannel file, final ByteBuffer buffer,
+      final long position) throws IOException {
+    long current = position;
+    while (buffer.hasRemaining()) {
+      final int read = file.read(buffer, current);
+      if (read < 0) {
+        return false;
+      }
+      current += read;
+    }
+    buffer.flip();
+    return true;
+  }
+
+  /**
+   * Reopens the file if another process has replaced it and indexes the
+   * records appended since the last time.
+   */
+  private void refresh() throws IOException {
+    this.lastRefresh = System.nanoTime();
+    if (isReplaced()) {
+      open();
+      return;
+    }
+    indexRecords();
+  }
+
+  private boolean isReplaced() {
+    try {
+      return !Files.readAttributes(this.cacheFile,
+          BasicFileAttributes.class).fileKey()
+          .equals(this.fileKey);
+    } catch (final IOException e) {
+      // deleted
+      return true;
+    }
+  }
+
+  /**
+   * Indexes the complete records after the last one indexed; a record being
+   * written, or left incomplete by a crash, ends the scan.
+   */
+  private void indexRecords() throws IOException {
+    final long size = this.channel.size();
+    long position = this.indexedLength;
+    final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+    while (position + RECORD_OVERHEAD <= size) {
+      lengthBuffer.clear();
+      if (!read(this.channel, lengthBuffer, position)) {
+        break;
+      }
+      final int length = lengthBuffer.getInt(0);
+      if (length < 0 || position + RECORD_OVERHEAD + length > size) {
+        break;
+      }
+      final ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + length);
+      if (!read(this.channel, record, position)) {
+        break;
+      }
+      final CRC32 crc = new CRC32();
+      crc.update(record.array(), 4, 16 + length);
+      if ((int) crc.getValue() != record.getInt(4 + 16 + length)) {
+        break;
+      }
+      final byte[] hash = new byte[16];
+      System.arraycopy(record.array(), 4, hash, 0, hash.length);
+      this.index.put(HashCode.fromBytes(hash), position);
+      position += RECORD_OVERHEAD + length;
+    }
+    this.indexedLength = position;
+  }
+
+  /**
+   * @return the parses or null if the record at the offset is not the one of
+   *         the hash
+   */
+  private static Parse[] readRecord(final FileChannel file,
+      final HashCode hash, final long offset) throws IOException {
+    final ByteBuffer prefix = ByteBuffer.allocate(4 + 16);
+    if (!read(file, prefix, offset)) {
+      return null;
+    }
+    final byte[] recordHash = new byte[16];
+    System.arraycopy(prefix.array(), 4, recordHash, 0, recordHash.length);
+    if (!Arrays.equals(recordHash, hash.asBytes())) {
+      return null;
+    }
+    final ByteBuffer trees = ByteBuffer.allocate(prefix.getInt(0));
+    if (!read(file, trees, offset + 4 + 16)) {
+      return null;
+    }
+    return readParses(trees.array());
+  }
+
+  private static byte[] toRecord(final HashCode hash, final byte[] trees) {
+    final ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD
+        + trees.length);
+    record.putInt(trees.length).put(hash.asBytes()).put(trees);
+    final CRC32 crc = new CRC32();
+    crc.update(record.array(), 4, 16 + trees.length);
+    record.putInt((int) crc.getValue());
+    return record.array();
+  }
+
+  /**
+   * Appends a record, indexing it right away if no other process appended
+   * records since the last refresh.
+   */
+  private void append(final HashCode hash, final byte[] record)
+      throws IOException {
+    if (isReplaced()) {
+      open();
+    }
+    final long offset;
+    final FileLock lock = this.channel.lock();
+    try {
+      offset = this.channel.size();
+      final ByteBuffer buffer = ByteBuffer.wrap(record);
+      long position = offset;
+      while (buffer.hasRemaining()) {
+        position += this.channel.write(buffer, position);
+      }
+    } finally {
+      lock.release();
+    }
+    if (offset == this.indexedLength) {
+      this.index.put(hash, offset);
+      this.indexedLength = offset + record.length;
+    }
+    if (this.channel.size() > this.maxBytes) {
+      compact();
+    }
+  }
+
+  /**
+   * Rewrites the file with the most recent half of the distinct records.
+   */
+  private void compact() throws IOException {
+    final Path compacted = Files.createTempFile(this.cacheFile.getParent(),
+        this.cacheFile.getFileName().toString(), ".tmp");
+    final FileLock lock = this.channel.lock();
+    try {
+      if (isReplaced()) {
+        // compacted by another process meanwhile
+        Files.deleteIfExists(compacted);
+        refresh();
+        return;
+      }
+      refresh();
+      // the index holds the latest record of every sentence
+      final List<Long> offsets = new ArrayList<>(this.index.values());
+      offsets.sort(null);
+      final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+      long kept = 0;
+      final List<ByteBuffer> keep = new ArrayList<>();
+      for (int i = offsets.size() - 1; i >= 0; i--) {
+        final long offset = offsets.get(i);
+        lengthBuffer.clear();
+        if (!read(this.channel, lengthBuffer, offset)) {
+          continue;
+        }
+        final int recordLength = RECORD_OVERHEAD + lengthBuffer.getInt(0);
+        if (kept + recordLength > this.maxBytes / 2) {
+          break;
+        }
+        final ByteBuffer record = ByteBuffer.allocate(recordLength);
+        if (read(this.channel, record, offset)) {
+          kept += recordLength;
+          keep.add(0, record);
+        }
+      }
+      try (FileChannel out = FileChannel.open(compacted,
+          StandardOpenOption.WRITE)) {
+        out.write(ByteBuffer.wrap(header()));
+        for (final ByteBuffer record : keep) {
+          while (record.hasRemaining()) {
+            out.write(record);
+          }
+        }
+        out.force(true);
+      }
+      Files.move(compacted, this.cacheFile,
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      // reopening a replaced file closes the channel and releases its lock
+      if (lock.isValid()) {
+        lock.release();
+      }
+      Files.deleteIfExists(compacted);
+    }
+    System.err.println("-> Compacted parse cache " + this.cacheFile);
+    open();
+  }
+
+  /**
+   * Serializes trees: the text of the sentence and every node in preorder,
+   * with the position of the child holding its head, or -1 if the node is
+   * its own head.
+   */
+  private static byte[] writeParses(final Parse[] parses) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(parses.length);
+    for (final Parse parse : parses) {
+      final byte[] text = parse.getText().getBytes(StandardCharsets.UTF_8);
+      out.writeInt(text.length);
+      out.write(text);
+      writeNode(parse, out);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeNode(final Parse parse, final DataOutputStream out)
+      throws IOException {
+    out.writeUTF(parse.getType());
+    out.writeInt(parse.getSpan().getStart());
+    out.writeInt(parse.getSpan().getEnd());
+    out.writeDouble(parse.getProb());
+    out.writeInt(parse.getHeadIndex());
+    final Parse[] children = parse.getChildren();
+    out.writeInt(getHeadChild(parse, children));
+    out.writeInt(children.length);
+    for (final Parse child : children) {
+      writeNode(child, out);
+    }
+  }
+
+  /**
+   * @return the position of the child holding the head of the node, or -1
+   *         if the node is its own head
+   */
+  private static int getHeadChild(final Parse parse, final Parse[] children) {
+    final Parse head = parse.getHead();
+    if (head != null && head != parse) {
+      for (int i = 0; i < children.length; i++) {
+        if (children[i].getHead() == head) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static Parse[] readParses(final byte[] trees) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+        trees));
+    final Parse[] parses = new Parse[in.readInt()];
+    for (int i = 0; i < parses.length; i++) {
+      final byte[] text = new byte[in.readInt()];
+      in.readFully(text);
+      parses[i] = readNode(new String(text, StandardCharsets.UTF_8), in);
+    }
+    return parses;
+  }
+
+  private static Parse readNode(final String text, final DataInputStream in)
+      throws IOException {
+    final String type = in.readUTF();
+    final Span span = new Span(in.readInt(), in.readInt());
+    final double prob = in.readDouble();
+    final int headIndex = in.readInt();
+    final int headChild = in.readInt();
+    final Parse[] children = new Parse[in.readInt()];
+    for (int i = 0; i < children.length; i++) {
+      children[i] = readNode(text, in);
+    }
+    final Parse parse = headChild < 0 ? new Parse(text, span, type, prob,
+        headIndex) : new Parse(text, span, type, prob, children[headChild]);
+    for (final Parse child : children) {
+      parse.insert(child);
+    }
+    return parse;
+  }
+}
@@ -20,6 +20,23 @@ public class Flags {
   public static final String DEFAULT_HEADFINDER = "no";
   public static final String DEFAULT_OUTPUT_FORMAT = "naf";
   public static final String DEFAULT_HOSTNAME = "localhost";
+  public static final String DEFAULT_THREADS = "1";
+  public static final String DEFAULT_WORKERS = "4";
+  public static final String DEFAULT_QUEUE_SIZE = "64";
+  public static final String DEFAULT_MAX_CONNECTIONS = "256";
+  public static final String DEFAULT_DEADLINE = "0";
+  public static final String DEFAULT_MAX_IN_FLIGHT = "32";
+  public static final String DEFAULT_WRITE_TIMEOUT = "10000";
+  public static final String DEFAULT_WARMUP_SENTENCES = "20";
+  public static final String DEFAULT_WATCH_QUIET_PERIOD = "5000";
+  public static final String DEFAULT_CACHE_SIZE = "0";
+  public static final String DEFAULT_DISK_CACHE_SIZE = "1024";
+  public static final String DEFAULT_BATCH_GLOB = "*.naf";
+  public static final String DEFAULT_SENTENCE_TIMEOUT = "0";
+  public static final String DEFAULT_MAX_SENTENCE_TOKENS = "0";
+  public static final String DEFAULT_BEAM_POLICY = "fixed";
+  public static final String DEFAULT_BEAM_RETRY_BUDGET = "0.1";
+  public static final String DEFAULT_PRE_TAGGED = "false";
 
   /**
    * This class is to be statically used.
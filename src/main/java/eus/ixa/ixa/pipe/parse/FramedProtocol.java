@@ -0,0 +1,195 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Length-framed protocol of the TCP server. A client opens the connection by
+ * sending the {@link #MAGIC} bytes and then sends any number of requests over
+ * the same connection without waiting for the answers. Every request is
+ * answered with a response carrying the same request id; responses are sent as
+ * soon as they are ready, so they may arrive in a different order than the
+ * requests.
+ * <p>
+ * Request frame: {@code int requestId, int deadline (ms, 0 for the server
+ * default), int length, byte[length] UTF-8 document}.
+ * <p>
+ * Response frame: {@code int requestId, byte status, int length, byte[length]
+ * UTF-8 annotation or error message}.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+public final class FramedProtocol {
+
+  /**
+   * First bytes sent by a client to choose the framed protocol. Connections
+   * not starting with them use the line protocol.
+   */
+  static final byte[] MAGIC = { 'I', 'X', 'A', 'F' };
+  public static final byte STATUS_OK = 0;
+  public static final byte STATUS_ERROR = 1;
+  public static final byte STATUS_BUSY = 2;
+  /**
+   * Largest payload accepted in a frame.
+   */
+  public static final int MAX_FRAME_LENGTH = 256 * 1024 * 1024;
+
+  /**
+   * This class is to be statically used.
+   */
+  private FramedProtocol() {
+  }
+
+  /**
+   * A request frame.
+   */
+  public static final class Request {
+    public final int requestId;
+    public final int deadline;
+    public final byte[] payload;
+
+    public Request(final int requestId, final int deadline,
+        final byte[] payload) {
+      this.requestId = requestId;
+      this.deadline = deadline;
+      this.payload = payload;
+    }
+  }
+
+  /**
+   * A response frame.
+   */
+  public static final class Response {
+    public final int requestId;
+    public final byte status;
+    public final byte[] payload;
+
+    public Response(final int requestId, final byte status,
+        final byte[] payload) {
+      this.requestId = requestId;
+      this.status = status;
+      this.payload = payload;
+    }
+  }
+
+  /**
+   * Sends the bytes opening a framed connection.
+   *
+   * @param out
+   *          the output stream of the connection
+   * @throws IOException
+   *           if io error
+   */
+  public static void writeMagic(final DataOutputStream out) throws IOException {
+    out.write(MAGIC);
+  }
+
+  /**
+   * Reads the next request of a connection.
+   *
+   * @param in
+   *          the input stream of the connection
+   * @return the request or null if the client closed the connection
+   * @throws IOException
+   *           if io error or the frame is not correct
+   */
+  public static Request readRequest(final DataInputStream in)
+      throws IOException {
+    final int requestId;
+    try {
+      requestId = in.readInt();
+    } catch (final EOFException e) {
+      return null;
+    }
+    final int deadline = in.readInt();
+    return new Request(requestId, deadline, readPayload(in));
+  }
+
+  /**
+   * Writes a request; the caller is responsible for flushing.
+   *
+   * @param out
+   *          the output stream of the connection
+   * @param request
+   *          the request
+   * @throws IOException
+   *           if io error
+   */
+  public static void writeRequest(final DataOutputStream out,
+      final Request request) throws IOException {
+    out.writeInt(request.requestId);
+    out.writeInt(request.deadline);
+    out.writeInt(request.payload.length);
+    out.write(request.payload);
+  }
+
+  /**
+   * Reads the next response of a connection.
+   *
+   * @param in
+   *          the input stream of the connection
+   * @return the response or null if the server closed the connection
+   * @throws IOException
+   *           if io error or the frame is not correct
+   */
+  public static Response readResponse(final DataInputStream in)
+      throws IOException {
+    final int requestId;
+    try {
+      requestId = in.readInt();
+    } catch (final EOFException e) {
+      return null;
+    }
+    final byte status = in.readByte();
+    return new Response(requestId, status, readPayload(in));
+  }
+
+  /**
+   * Writes a response; the caller is responsible for flushing and for
+   * serializing the writes of concurrent responses.
+   *
+   * @param out
+   *          the output stream of the connection
+   * @param response
+   *          the response
+   * @throws IOException
+   *           if io error
+   */
+  public static void writeResponse(final DataOutputStream out,
+      final Response response) throws IOException {
+    out.writeInt(response.requestId);
+    out.writeByte(response.status);
+    out.writeInt(response.payload.length);
+    out.write(response.payload);
+  }
+
+  private static byte[] readPayload(final DataInputStream in)
+      throws IOException {
+    final int length = in.readInt();
+    if (length < 0 || length > MAX_FRAME_LENGTH) {
+      throw new IOException("Frame length not correct: " + length);
+    }
+    final byte[] payload = new byte[length];
+    in.readFully(payload);
+    return payload;
+  }
+}
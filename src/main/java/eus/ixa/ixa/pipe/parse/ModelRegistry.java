@@ -0,0 +1,321 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import opennlp.tools.parser.ParserModel;
+
+/**
+ * Registry of the parser models resident in the JVM. Models are identified by
+ * the canonical path of the model file plus a checksum of its contents, so
+ * several models for the same language can be used at the same time and a
+ * model file replaced on disk is loaded as a different model.
+ * <p>
+ * Every {@link #acquire(String)} returns a {@link Handle} that must be
+ * released when the model is no longer used. Models stay resident while they
+ * are referenced or until they are explicitly unloaded with
+ * {@link #unload(String)}.
+ * <p>
+ * The build and check models of every model are kept in the compact form of
+ * {@link CompactMaxentModel}, which takes a fraction of the heap of the
+ * deserialized ones. Model files can also be {@link ModelSnapshot}s, which
+ * are memory-mapped instead of deserialized.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+public final class ModelRegistry {
+
+  /**
+   * The resident models, keyed by {@link #getModelKey(File)}.
+   */
+  private static final Map<String, Entry> models = new HashMap<>();
+  /**
+   * The checksum of every model file by canonical path, with the attributes
+   * the file had when it was computed, so that the file is only read again
+   * when it changes.
+   */
+  private static final Map<String, FileChecksum> checksums = new ConcurrentHashMap<>();
+
+  /**
+   * This class is to be statically used.
+   */
+  private ModelRegistry() {
+  }
+
+  private static final class Entry {
+    private final String key;
+    private final CompletableFuture<ParserModel> model = new CompletableFuture<>();
+    private int references;
+    private boolean unloadRequested;
+
+    private Entry(final String key) {
+      this.key = key;
+    }
+  }
+
+  private static final class FileChecksum {
+    private final Object fileKey;
+    private final long size;
+    private final FileTime lastModified;
+    private final String checksum;
+
+    private FileChecksum(final BasicFileAttributes attributes,
+        final String checksum) {
+      this.fileKey = attributes.fileKey();
+      this.size = attributes.size();
+      this.lastModified = attributes.lastModifiedTime();
+      this.checksum = checksum;
+    }
+
+    /**
+     * @return whether the file is the same, not replaced nor modified, as
+     *         when the checksum was computed
+     */
+    private boolean isCurrent(final BasicFileAttributes attributes) {
+      return Objects.equals(this.fileKey, attributes.fileKey())
+          && this.size == attributes.size()
+          && this.lastModified.equals(attributes.lastModifiedTime());
+    }
+  }
+
+  /**
+   * A reference to a resident model.
+   */
+  public static final class Handle implements AutoCloseable {
+    private final Entry entry;
+    private final ParserModel model;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Handle(final Entry entry, final ParserModel model) {
+      this.entry = entry;
+      this.model = model;
+    }
+
+    /**
+     * @return the model
+     */
+    public ParserModel getModel() {
+      return this.model;
+    }
+
+    /**
+     * @return the canonical path and checksum identifying the model
+     */
+    public String getKey() {
+      return this.entry.key;
+    }
+
+    /**
+     * Releases the reference; releasing it more than once has no effect.
+     */
+    @Override
+    public void close() {
+      if (this.released.compareAndSet(false, true)) {
+        release(this.entry);
+      }
+    }
+  }
+
+  /**
+   * Gets a reference to a model, loading it if it is not resident.
+   *
+   * @param modelPath
+   *          the path of the model file
+   * @return the handle of the model
+   * @throws IOException
+   *           if the model cannot be read
+   */
+  public static Handle acquire(final String modelPath) throws IOException {
+    final File modelFile = new File(modelPath);
+    final String key = getModelKey(modelFile);
+    Entry entry;
+    boolean load = false;
+    synchronized (models) {
+      entry = models.get(key);
+      if (entry == null) {
+        entry = new Entry(key);
+        models.put(key, entry);
+        load = true;
+      }
+      entry.references++;
+    }
+    // load outside the lock so that other models can be acquired meanwhile
+    if (load) {
+      final long lStartTime = System.nanoTime();
+      try {
+        entry.model.complete(load(modelFile));
+        ParserMetrics.getDefault().record(ParserMetrics.Stage.MODEL_LOAD,
+            lStartTime);
+      } catch (final IOException | RuntimeException e) {
+        synchronized (models) {
+          models.remove(key);
+        }
+        entry.model.completeExceptionally(e);
+      }
+    }
+    try {
+      return new Handle(entry, entry.model.get());
+    } catch (final InterruptedException e) {
+      release(entry);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading " + modelPath, e);
+    } catch (final ExecutionException e) {
+      release(entry);
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Could not load " + modelPath, e.getCause());
+    }
+  }
+
+  /**
+   * @param modelFile
+   *          an OpenNLP model or a snapshot
+   * @return the model
+   * @throws IOException
+   *           if the model cannot be read
+   */
+  private static ParserModel load(final File modelFile) throws IOException {
+    if (ModelSnapshot.isSnapshot(modelFile)) {
+      return ModelSnapshot.read(modelFile);
+    }
+    try (InputStream modelIn = new FileInputStream(modelFile)) {
+      return compact(new ParserModel(modelIn));
+    }
+  }
+
+  /**
+   * @param model
+   *          a deserialized model
+   * @return the model with compact build and check models or, if they
+   *         cannot be converted, the model itself
+   */
+  private static ParserModel compact(final ParserModel model) {
+    try {
+      return CompactMaxentModel.compact(model);
+    } catch (final RuntimeException e) {
+      System.err.println("-> WARNING: Could not compact the parser model, using it as it is: "
+          + e.getMessage() + "!!");
+      return model;
+    }
+  }
+
+  /**
+   * Unloads a model. If it is still referenced it is removed when the last
+   * reference is released; the model is loaded again by the next
+   * {@link #acquire(String)}.
+   *
+   * @param key
+   *          the key of the model, as returned by {@link Handle#getKey()}
+   * @return true if the model was resident
+   */
+  public static boolean unload(final String key) {
+    synchronized (models) {
+      final Entry entry = models.get(key);
+      if (entry == null) {
+        return false;
+      }
+      if (entry.references == 0) {
+        models.remove(key);
+      } else {
+        entry.unloadRequested = true;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * @return the keys of the resident models
+   */
+  public static List<String> getResidentModels() {
+    synchronized (models) {
+      return new ArrayList<>(models.keySet());
+    }
+  }
+
+  /**
+   * @param key
+   *          the key of the model
+   * @return the number of references to the model, 0 if it is not resident
+   */
+  public static int getReferences(final String key) {
+    synchronized (models) {
+      final Entry entry = models.get(key);
+      return entry == null ? 0 : entry.references;
+    }
+  }
+
+  /**
+   * Computes the key of a model file: its canonical path plus a checksum of
+   * its contents. Snapshots store the checksum in their header, so only the
+   * header is read instead of paging in the whole mapped file. The checksum
+   * is computed again only when the identity, size or modification time of
+   * the file change.
+   *
+   * @param modelFile
+   *          the model file
+   * @return the key
+   * @throws IOException
+   *           if the file cannot be read
+   */
+  public static String getModelKey(final File modelFile) throws IOException {
+    final String path = modelFile.getCanonicalPath();
+    // read before the contents, so that a change while hashing is noticed
+    final BasicFileAttributes attributes = java.nio.file.Files.readAttributes(
+        modelFile.toPath(), BasicFileAttributes.class);
+    final FileChecksum cached = checksums.get(path);
+    if (cached != null && cached.isCurrent(attributes)) {
+      return path + "#" + cached.checksum;
+    }
+    String checksum = ModelSnapshot.getChecksum(modelFile);
+    if (checksum == null) {
+      checksum = Files.asByteSource(modelFile).hash(Hashing.murmur3_128())
+          .toString();
+    }
+    checksums.put(path, new FileChecksum(attributes, checksum));
+    return path + "#" + checksum;
+  }
+
+  private static void release(final Entry entry) {
+    synchronized (models) {
+      entry.references--;
+      if (entry.references == 0 && entry.unloadRequested
+          && models.get(entry.key) == entry) {
+        models.remove(entry.key);
+      }
+    }
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+
+import opennlp.tools.ml.maxent.GISModel;
+import opennlp.tools.ml.model.Context;
+import opennlp.tools.ml.model.MaxentModel;
+import opennlp.tools.parser.ParserModel;
+
+/**
+ * Binary snapshot of a parser model that loads in a fraction of the time of
+ * the model file. The build and check models, most of the model, are written
+ * as {@link CompactMaxentModel}s laid out as in memory, and the file is
+ * memory-mapped when loaded: their weights are read from the page cache as
+ * they are used instead of being deserialized into the heap, and every
+ * process parsing with the same snapshot on a host shares the same pages.
+ * The rest of the model, the tagger, the chunker and the head rules, is
+ * stored as an OpenNLP model without build and check parameters.
+ * <p>
+ * The layout is the magic number, the format version, a checksum of the
+ * snapshot, the length and bytes of the OpenNLP model, and the build and
+ * check models, every part padded to a multiple of 8 bytes. The checksum
+ * identifies the snapshot in the {@link ModelRegistry} without reading more
+ * than the header.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+final class ModelSnapshot {
+
+  /**
+   * IXAPARSE in ASCII.
+   */
+  private static final long MAGIC = 0x4958415041525345L;
+  private static final int VERSION = 2;
+  /**
+   * The offset of the checksum, after the magic number and the version.
+   */
+  private static final int CHECKSUM_OFFSET = Long.BYTES + Integer.BYTES;
+
+  /**
+   * This class is to be statically used.
+   */
+  private ModelSnapshot() {
+  }
+
+  /**
+   * @param file
+   *          a model file
+   * @return whether the file is a snapshot rather than an OpenNLP model
+   * @throws IOException
+   *           if the file cannot be read
+   */
+  static boolean isSnapshot(final File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(file
+        .toPath()))) {
+      return file.length() >= Long.BYTES && in.readLong() == MAGIC;
+    }
+  }
+
+  /**
+   * @param file
+   *          a model file
+   * @return the checksum in the header of the snapshot, or null if the file
+   *         is not a snapshot of the current version
+   * @throws IOException
+   *           if the file cannot be read
+   */
+  static String getChecksum(final File file) throws IOException {
+    if (file.length() < CHECKSUM_OFFSET + Long.BYTES) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(file
+        .toPath()))) {
+      if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+        return null;
+      }
+      return String.format("%016x", in.readLong());
+    }
+  }
+
+  /**
+   * Converts an OpenNLP parser model file into a snapshot. The snapshot is
+   * written to a temporary file and then moved, so that servers watching the
+   * snapshot never load a partial one. The checksum is the hash of the
+   * snapshot written with a zero checksum.
+   *
+   * @param modelFile
+   *          the OpenNLP model
+   * @param snapshotFile
+   *          the snapshot
+   * @throws IOException
+   *           if io error
+   */
+  static void convert(final Path modelFile, final Path snapshotFile)
+      throws IOException {
+    final ParserModel model;
+    try (InputStream modelIn = Files.newInputStream(modelFile)) {
+      model = new ParserModel(modelIn);
+    }
+    final CompactMaxentModel buildModel = toCompact(model.getBuildModel(),
+        "build");
+    final CompactMaxentModel checkModel = toCompact(model.getCheckModel(),
+        "check");
+    final ByteArrayOutputStream skeleton = new ByteArrayOutputStream();
+    model.updateBuildModel(withoutParameters(buildModel))
+        .updateCheckModel(withoutParameters(checkModel)).serialize(skeleton);
+
+    final Path dir = snapshotFile.toAbsolutePath().getParent();
+    Files.createDirectories(dir);
+    final Path tmpFile = Files.createTempFile(dir, snapshotFile.getFileName()
+        .toString(), ".tmp");
+    try {
+      final long checksum;
+      try (HashingOutputStream hashOut = new HashingOutputStream(Hashing
+          .murmur3_128(), Files.newOutputStream(tmpFile));
+          DataOutputStream out = new DataOutputStream(
+              new BufferedOutputStream(hashOut))) {
+        out.writeLong(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(0);
+        out.writeInt(skeleton.size());
+        skeleton.writeTo(out);
+        while (out.size() % 8 != 0) {
+          out.writeByte(0);
+        }
+        buildModel.write(out);
+        checkModel.write(out);
+        out.flush();
+        checksum = hashOut.hash().asLong();
+      }
+      try (FileChannel channel = FileChannel.open(tmpFile,
+          StandardOpenOption.WRITE)) {
+        final ByteBuffer checksumBytes = ByteBuffer.allocate(Long.BYTES);
+        checksumBytes.putLong(checksum).flip();
+        channel.write(checksumBytes, CHECKSUM_OFFSET);
+      }
+      Files.move(tmpFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmpFile);
+    }
+  }
+
+  private static CompactMaxentModel toCompact(final MaxentModel model,
+      final String name) {
+    final MaxentModel compactModel = CompactMaxentModel.compact(model);
+    if (!(compactModel instanceof CompactMaxentModel)) {
+      throw new IllegalArgumentException("The " + name
+          + " model is not a GIS model and cannot be converted");
+    }
+    return (CompactMaxentModel) compactModel;
+  }
+
+  /**
+   * @param model
+   *          a model
+   * @return a GIS model with the outcomes of the model and no parameters,
+   *         which takes its place in the OpenNLP model of the snapshot
+   */
+  private static MaxentModel withoutParameters(final MaxentModel model) {
+    final String[] outcomes = new String[model.getNumOutcomes()];
+    for (int i = 0; i < outcomes.length; i++) {
+      outcomes[i] = model.getOutcome(i);
+    }
+    return new GISModel(new Context[0], new String[0], outcomes, 1, 0);
+  }
+
+  /**
+   * Loads a snapshot, mapping it into memory.
+   *
+   * @param snapshotFile
+   *          the snapshot
+   * @return the parser model
+   * @throws IOException
+   *           if the file cannot be read or is not a snapshot
+   */
+  static ParserModel read(final File snapshotFile) throws IOException {
+    final MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(snapshotFile.toPath(),
+        StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Snapshot " + snapshotFile
+            + " is larger than 2 GB");
+      }
+      // the mapping stays valid once the channel is closed
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.limit() < CHECKSUM_OFFSET + Long.BYTES + Integer.BYTES
+        || buffer.getLong() != MAGIC) {
+      throw new IOException(snapshotFile + " is not a model snapshot");
+    }
+    final int version = buffer.getInt();
+    if (version != VERSION) {
+      throw new IOException("Snapshot " + snapshotFile + " has version "
+          + version + ", expected " + VERSION + "; convert the model again");
+    }
+    // the checksum
+    buffer.getLong();
+    final byte[] skeleton = new byte[buffer.getInt()];
+    buffer.get(skeleton);
+    align(buffer);
+    final ParserModel model = new ParserModel(new ByteArrayInputStream(
+        skeleton));
+    final CompactMaxentModel buildModel = CompactMaxentModel.read(buffer);
+    final CompactMaxentModel checkModel = CompactMaxentModel.read(buffer);
+    return model.updateBuildModel(buildModel).updateCheckModel(checkModel);
+  }
+
+  private static void align(final ByteBuffer buffer) {
+    buffer.position(buffer.position() + 7 & ~7);
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import opennlp.tools.parser.Parse;
+
+/**
+ * Bounded in-memory cache of parse results for corpora where the same
+ * sentences, e.g., headers, bylines or legal footers, occur many times.
+ * Results are keyed by the model, the token sequence and the number of
+ * parses, and evicted in least recently used order once the cached
+ * sentences add up to the maximum number of tokens.
+ * <p>
+ * The trees returned are always copies, so callers can modify them, e.g.,
+ * when marking heads, without changing the cached results. The cache can be
+ * used concurrently from several threads; a sentence being parsed by one
+ * thread is waited for, not parsed again, by the others.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+public class ParseCache {
+
+  private final Cache<Key, Parse[]> cache;
+
+  private static final class Key {
+    private final String modelKey;
+    private final String sentence;
+    private final int numParses;
+    /**
+     * The number of tokens of the sentence, the weight of its parses.
+     */
+    private final int tokens;
+    private final int hashCode;
+
+    private Key(final String modelKey, final String sentence,
+        final int tokens, final int numParses) {
+      this.modelKey = modelKey;
+      this.sentence = sentence;
+      this.tokens = tokens;
+      this.numParses = numParses;
+      this.hashCode = 31 * (31 * modelKey.hashCode() + sentence.hashCode())
+          + numParses;
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hashCode;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      return this.numParses == other.numParses
+          && this.sentence.equals(other.sentence)
+          && this.modelKey.equals(other.modelKey);
+    }
+  }
+
+  /**
+   * @param maxTokens
+   *          the maximum number of tokens of the cached sentences
+   */
+  public ParseCache(final long maxTokens) {
+    this.cache = CacheBuilder.newBuilder().maximumWeight(maxTokens)
+        .weigher((final Key key, final Parse[] parses) -> Math.max(1,
+            key.tokens * parses.length))
+        .recordStats().build();
+  }
+
+  /**
+   * Gets the parses of a sentence, parsing it if it is not cached.
+   *
+   * @param modelKey
+   *          the key of the model in the {@link ModelRegistry}
+   * @param sentence
+   *          the key of the token sequence, as given by
+   *          {@link ConstituentParser#getCacheSentence(String[])}
+   * @param tokens
+   *          the number of tokens of the sentence
+   * @param numParses
+   *          the number of parses
+   * @param parser
+   *          parses the sentence if it is not cached
+   * @return copies of the parses
+   */
+  public Parse[] get(final String modelKey, final String sentence,
+      final int tokens, final int numParses, final Supplier<Parse[]> parser) {
+    final Key key = new Key(modelKey, sentence, tokens, numParses);
+    final Parse[] parses;
+    try {
+      parses = this.cache.get(key, parser::get);
+    } catch (final ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+    if (parses.length > 0 && ConstituentParser.isFallback(parses[0])) {
+      // whether the budget is exceeded depends on the load, try again later
+      this.cache.invalidate(key);
+    }
+    final Parse[] copies = new Parse[parses.length];
+    for (int i = 0; i < parses.length; i++) {
+      copies[i] = copy(parses[i]);
+    }
+    return copies;
+  }
+
+  /**
+   * @return the hit, miss and eviction counts
+   */
+  public CacheStats getStats() {
+    return this.cache.stats();
+  }
+
+  /**
+   * @return the number of cached sentences
+   */
+  public long size() {
+    return this.cache.size();
+  }
+
+  /**
+   * Removes every cached result.
+   */
+  public void clear() {
+    this.cache.invalidateAll();
+  }
+
+  /**
+   * @return the statistics in a readable form
+   */
+  @Override
+  public String toString() {
+    final CacheStats stats = getStats();
+    return "hits " + stats.hitCount() + ", misses " + stats.missCount()
+        + ", evictions " + stats.evictionCount() + ", hit rate "
+        + String.format("%.2f", stats.hitRate()) + ", sentences " + size();
+  }
+
+  /**
+   * Copies a tree. {@link Parse#clone()} shares the children between the
+   * copies, so every node is copied here, keeping the heads of the nodes.
+   *
+   * @param parse
+   *          the tree
+   * @return the copy
+   */
+  static Parse copy(final Parse parse) {
+    return copy(parse, new IdentityHashMap<>());
+  }
+
+  private static Parse copy(final Parse parse, final Map<Parse, Parse> copies) {
+    final Parse[] children = parse.getChildren();
+    final Parse[] childCopies = new Parse[children.length];
+    for (int i = 0; i < children.length; i++) {
+      childCopies[i] = copy(children[i], copies);
+    }
+    final Parse head = parse.getHead();
+    final Parse headCopy = head == null || head == parse ? null : copies
+        .get(head);
+    final Parse copy;
+    if (headCopy == null) {
+      copy = new Parse(parse.getText(), parse.getSpan(), parse.getType(),
+          parse.getProb(), parse.getHeadIndex());
+    } else {
+      copy = new Parse(parse.getText(), parse.getSpan(), parse.getType(),
+          parse.getProb(), headCopy);
+    }
+    for (final Parse childCopy : childCopies) {
+      copy.insert(childCopy);
+    }
+    copies.put(parse, copy);
+    return copy;
+  }
+}
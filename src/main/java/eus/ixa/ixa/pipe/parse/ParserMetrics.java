@@ -0,0 +1,441 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package eus.ixa.ixa.pipe.parse;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide counters and histograms of the annotation: the latency of
+ * every stage, from NAF deserialization to serialization, the latency of the
+ * server requests, the requests in flight and queued, the length of the
+ * sentences parsed and the sentences given a fallback tree. Recording only
+ * updates striped counters, so it can be done from every thread without
+ * contention.
+ * <p>
+ * The metrics are exposed in Prometheus text format by {@link #toText()},
+ * served by the servers, and through JMX once {@link #registerMBean()} is
+ * called.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+public final class ParserMetrics implements ParserMetricsMXBean {
+
+  /**
+   * The JMX name of the metrics.
+   */
+  public static final String OBJECT_NAME = "eus.ixa.ixa.pipe.parse:type=ParserMetrics";
+  private static final String PREFIX = "ixa_pipe_parse_";
+  /**
+   * Latency buckets have power of two upper bounds in microseconds, from 1
+   * microsecond to about 67 seconds.
+   */
+  private static final int LATENCY_BUCKETS = 27;
+  /**
+   * Sentence length buckets have power of two upper bounds in tokens, from 1
+   * to 512 tokens.
+   */
+  private static final int LENGTH_BUCKETS = 10;
+  private static final ParserMetrics DEFAULT = new ParserMetrics();
+
+  /**
+   * The stages of the annotation of a document, plus the loading of the
+   * models by the {@link ModelRegistry}.
+   */
+  public enum Stage {
+    DESERIALIZE("deserialize"), SENTENCES("sentences"), PARSE("parse"), HEADS(
+        "heads"), CONSTITUENTS("constituents"), SERIALIZE("serialize"),
+    MODEL_LOAD("model_load");
+
+    private final String name;
+
+    Stage(final String name) {
+      this.name = name;
+    }
+
+    /**
+     * @return the name of the stage in the metrics
+     */
+    public String getName() {
+      return this.name;
+    }
+  }
+
+  /**
+   * The reasons to give a sentence a fallback tree instead of its parse.
+   */
+  public enum Fallback {
+    TIME("time"), SIZE("size");
+
+    private final String name;
+
+    Fallback(final String name) {
+      this.name = name;
+    }
+
+    /**
+     * @return the name of the reason in the metrics
+     */
+    public String getName() {
+      return this.name;
+    }
+  }
+
+  /**
+   * Histogram with power of two bucket upper bounds.
+   */
+  private static final class Histogram {
+    /**
+     * One counter per bucket plus one for the values over the last bound.
+     */
+    private final LongAdder[] buckets;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    private Histogram(final int bounds) {
+      this.buckets = new LongAdder[bounds + 1];
+      for (int i = 0; i < this.buckets.length; i++) {
+        this.buckets[i] = new LongAdder();
+      }
+    }
+
+    private void record(final long value) {
+      // the first power of two not smaller than the value
+      final int bucket = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+      this.buckets[Math.min(bucket, this.buckets.length - 1)].increment();
+      this.count.increment();
+      this.sum.add(value);
+    }
+
+    private double mean() {
+      final long total = this.count.sum();
+      return total == 0 ? 0 : (double) this.sum.sum() / total;
+    }
+
+    /**
+     * @param quantile
+     *          the quantile, between 0 and 1
+     * @return the upper bound of the bucket of the quantile, 0 if empty
+     */
+    private long percentile(final double quantile) {
+      final long total = this.count.sum();
+      if (total == 0) {
+        return 0;
+      }
+      final long rank = (long) Math.ceil(quantile * total);
+      long cumulative = 0;
+      for (int i = 0; i < this.buckets.length - 1; i++) {
+        cumulative += this.buckets[i].sum();
+        if (cumulative >= rank) {
+          return 1L << i;
+        }
+      }
+      return 1L << (this.buckets.length - 1);
+    }
+
+    /**
+     * Appends the histogram in Prometheus text format.
+     *
+     * @param text
+     *          the output
+     * @param name
+     *          the metric name
+     * @param labels
+     *          the labels of the series, empty for none
+     * @param scale
+     *          the unit of the bounds in the unit of the metric
+     */
+    private void appendTo(final StringBuilder text, final String name,
+        final String labels, final double scale) {
+      final String separator = labels.isEmpty() ? "" : ",";
+      long cumulative = 0;
+      for (int i = 0; i < this.buckets.length; i++) {
+        cumulative += this.buckets[i].sum();
+        final String bound = i == this.buckets.length - 1 ? "+Inf" : Double
+            .toString((1L << i) * scale);
+        text.append(name).append("_bucket{").append(labels).append(separator)
+            .append("le=\"").append(bound).append("\"} ").append(cumulative)
+            .append('\n');
+      }
+      final String series = labels.isEmpty() ? "" : "{" + labels + "}";
+      text.append(name).append("_sum").append(series).append(' ')
+          .append(this.sum.sum() * scale).append('\n');
+      text.append(name).append("_count").append(series).append(' ')
+          .append(this.count.sum()).append('\n');
+    }
+  }
+
+  private final Histogram[] stages = new Histogram[Stage.values().length];
+  private final Histogram requests = new Histogram(LATENCY_BUCKETS);
+  private final Histogram sentenceLengths = new Histogram(LENGTH_BUCKETS);
+  private final LongAdder[] fallbacks = new LongAdder[Fallback.values().length];
+  private final LongAdder beamRetries = new LongAdder();
+  private final LongAdder failedRequests = new LongAdder();
+  private final AtomicInteger inFlightRequests = new AtomicInteger();
+  private volatile IntSupplier queueDepth = () -> 0;
+
+  private ParserMetrics() {
+    for (int i = 0; i < this.stages.length; i++) {
+      this.stages[i] = new Histogram(LATENCY_BUCKETS);
+    }
+    for (int i = 0; i < this.fallbacks.length; i++) {
+      this.fallbacks[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * @return the metrics of this process
+   */
+  public static ParserMetrics getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Registers the metrics of this process in the platform MBean server;
+   * registering them more than once has no effect.
+   */
+  public static void registerMBean() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(DEFAULT,
+          new ObjectName(OBJECT_NAME));
+    } catch (final InstanceAlreadyExistsException e) {
+      // already registered
+    } catch (final JMException e) {
+      System.err.println("-> ERROR: Could not register the metrics in JMX: "
+          + e.getMessage() + "!!");
+    }
+  }
+
+  /**
+   * Records the latency of a stage.
+   *
+   * @param stage
+   *          the stage
+   * @param startTime
+   *          the {@link System#nanoTime()} at which the stage started
+   */
+  public void record(final Stage stage, final long startTime) {
+    this.stages[stage.ordinal()].record(toMicros(System.nanoTime() - startTime));
+  }
+
+  /**
+   * Records the length of a sentence parsed.
+   *
+   * @param tokens
+   *          the number of tokens of the sentence
+   */
+  public void recordSentence(final int tokens) {
+    this.sentenceLengths.record(tokens);
+  }
+
+  /**
+   * Counts a sentence given a fallback tree.
+   *
+   * @param reason
+   *          the budget exceeded by the sentence
+   */
+  public void recordFallback(final Fallback reason) {
+    this.fallbacks[reason.ordinal()].increment();
+  }
+
+  /**
+   * Counts a sentence parsed again with a wider beam.
+   */
+  public void recordBeamRetry() {
+    this.beamRetries.increment();
+  }
+
+  /**
+   * Counts a request received and not yet answered.
+   */
+  public void requestStarted() {
+    this.inFlightRequests.incrementAndGet();
+  }
+
+  /**
+   * Records a request answered.
+   *
+   * @param receiptTime
+   *          the {@link System#nanoTime()} at which the request was received
+   * @param failed
+   *          whether the request was answered with an error
+   */
+  public void requestFinished(final long receiptTime, final boolean failed) {
+    this.inFlightRequests.decrementAndGet();
+    this.requests.record(toMicros(System.nanoTime() - receiptTime));
+    if (failed) {
+      this.failedRequests.increment();
+    }
+  }
+
+  /**
+   * @param depth
+   *          gives the number of requests waiting for a worker
+   */
+  public void setQueueDepth(final IntSupplier depth) {
+    this.queueDepth = depth;
+  }
+
+  private static long toMicros(final long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos + 999);
+  }
+
+  private static double toMillis(final double micros) {
+    return micros / 1000.0;
+  }
+
+  @Override
+  public long getRequests() {
+    return this.requests.count.sum();
+  }
+
+  @Override
+  public long getFailedRequests() {
+    return this.failedRequests.sum();
+  }
+
+  @Override
+  public int getInFlightRequests() {
+    return this.inFlightRequests.get();
+  }
+
+  @Override
+  public int getQueueDepth() {
+    return this.queueDepth.getAsInt();
+  }
+
+  @Override
+  public double getRequestMeanMillis() {
+    return toMillis(this.requests.mean());
+  }
+
+  @Override
+  public double getRequest99thPercentileMillis() {
+    return toMillis(this.requests.percentile(0.99));
+  }
+
+  @Override
+  public long getSentences() {
+    return this.sentenceLengths.count.sum();
+  }
+
+  @Override
+  public double getMeanSentenceLength() {
+    return this.sentenceLengths.mean();
+  }
+
+  @Override
+  public Map<String, Long> getFallbacks() {
+    final Map<String, Long> counts = new LinkedHashMap<>();
+    for (final Fallback reason : Fallback.values()) {
+      counts.put(reason.getName(), this.fallbacks[reason.ordinal()].sum());
+    }
+    return counts;
+  }
+
+  @Override
+  public long getBeamRetries() {
+    return this.beamRetries.sum();
+  }
+
+  @Override
+  public Map<String, Long> getStageCounts() {
+    final Map<String, Long> counts = new LinkedHashMap<>();
+    for (final Stage stage : Stage.values()) {
+      counts.put(stage.getName(), this.stages[stage.ordinal()].count.sum());
+    }
+    return counts;
+  }
+
+  @Override
+  public Map<String, Double> getStageMeanMillis() {
+    final Map<String, Double> means = new LinkedHashMap<>();
+    for (final Stage stage : Stage.values()) {
+      means.put(stage.getName(), toMillis(this.stages[stage.ordinal()].mean()));
+    }
+    return means;
+  }
+
+  @Override
+  public Map<String, Double> getStage99thPercentileMillis() {
+    final Map<String, Double> percentiles = new LinkedHashMap<>();
+    for (final Stage stage : Stage.values()) {
+      percentiles.put(stage.getName(),
+          toMillis(this.stages[stage.ordinal()].percentile(0.99)));
+    }
+    return percentiles;
+  }
+
+  /**
+   * @return the metrics in Prometheus text format
+   */
+  public String toText() {
+    final StringBuilder text = new StringBuilder(8192);
+    final String stageSeconds = PREFIX + "stage_seconds";
+    text.append("# HELP ").append(stageSeconds)
+        .append(" Latency of the annotation stages.\n");
+    text.append("# TYPE ").append(stageSeconds).append(" histogram\n");
+    for (final Stage stage : Stage.values()) {
+      this.stages[stage.ordinal()].appendTo(text, stageSeconds, "stage=\""
+          + stage.getName() + "\"", 1e-6);
+    }
+    final String requestSeconds = PREFIX + "request_seconds";
+    text.append("# HELP ").append(requestSeconds)
+        .append(" Latency of the requests from receipt to answer.\n");
+    text.append("# TYPE ").append(requestSeconds).append(" histogram\n");
+    this.requests.appendTo(text, requestSeconds, "", 1e-6);
+    final String sentenceTokens = PREFIX + "sentence_tokens";
+    text.append("# HELP ").append(sentenceTokens)
+        .append(" Length of the sentences parsed.\n");
+    text.append("# TYPE ").append(sentenceTokens).append(" histogram\n");
+    this.sentenceLengths.appendTo(text, sentenceTokens, "", 1);
+    final String fallbackTotal = PREFIX + "fallbacks_total";
+    text.append("# HELP ").append(fallbackTotal)
+        .append(" Sentences given a fallback tree by exceeded budget.\n");
+    text.append("# TYPE ").append(fallbackTotal).append(" counter\n");
+    for (final Fallback reason : Fallback.values()) {
+      text.append(fallbackTotal).append("{reason=\"").append(reason.getName())
+          .append("\"} ").append(this.fallbacks[reason.ordinal()].sum())
+          .append('\n');
+    }
+    appendValue(text, PREFIX + "beam_retries_total", "counter",
+        "Sentences parsed again with a wider beam.", getBeamRetries());
+    appendValue(text, PREFIX + "failed_requests_total", "counter",
+        "Requests answered with an error.", getFailedRequests());
+    appendValue(text, PREFIX + "in_flight_requests", "gauge",
+        "Requests received and not yet answered.", getInFlightRequests());
+    appendValue(text, PREFIX + "queue_depth", "gauge",
+        "Requests waiting for a worker.", getQueueDepth());
+    return text.toString();
+  }
+
+  private static void appendValue(final StringBuilder text, final String name,
+      final String type, final String help, final long value) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    text.append(name).append(' ').append(value).append('\n');
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package eus.ixa.ixa.pipe.parse;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link ParserMetrics}, registered as
+ * {@value ParserMetrics#OBJECT_NAME}. Stages are keyed by their names as in
+ * the metrics text; times are in milliseconds and percentiles are the upper
+ * bound of the histogram bucket they fall in.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+public interface ParserMetricsMXBean {
+
+  /**
+   * @return the requests answered
+   */
+  long getRequests();
+
+  /**
+   * @return the requests answered with an error
+   */
+  long getFailedRequests();
+
+  /**
+   * @return the requests received and not yet answered
+   */
+  int getInFlightRequests();
+
+  /**
+   * @return the requests waiting for a worker
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the mean time from receipt to answer of the requests
+   */
+  double getRequestMeanMillis();
+
+  /**
+   * @return the 99th percentile of the time from receipt to answer
+   */
+  double getRequest99thPercentileMillis();
+
+  /**
+   * @return the sentences parsed
+   */
+  long getSentences();
+
+  /**
+   * @return the mean number of tokens of the sentences parsed
+   */
+  double getMeanSentenceLength();
+
+  /**
+   * @return the sentences given a fallback tree by exceeded budget
+   */
+  Map<String, Long> getFallbacks();
+
+  /**
+   * @return the sentences parsed again with a wider beam
+   */
+  long getBeamRetries();
+
+  /**
+   * @return the times every stage has been run
+   */
+  Map<String, Long> getStageCounts();
+
+  /**
+   * @return the mean time of every stage
+   */
+  Map<String, Double> getStageMeanMillis();
+
+  /**
+   * @return the 99th percentile of the time of every stage
+   */
+  Map<String, Double> getStage99thPercentileMillis();
+}
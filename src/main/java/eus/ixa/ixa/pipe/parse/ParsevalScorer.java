@@ -0,0 +1,341 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import eus.ixa.ixa.pipe.heads.CollinsHeadFinder;
+import opennlp.tools.parser.AbstractBottomUpParser;
+import opennlp.tools.parser.Parse;
+import opennlp.tools.util.Span;
+
+/**
+ * Labeled bracket (PARSEVAL) scorer comparing parsed trees with gold trees
+ * one sentence at a time. As in EVALB, empty elements and the constituents
+ * covering only empty elements are removed from the gold trees with
+ * {@link #removeEmptyElements(Parse)}, the brackets of the root and of the
+ * part of speech tags are not scored, labels are compared without functional
+ * tags, indexes and head marks, and repeated brackets are matched as a
+ * multiset; unlike EVALB's COLLINS.prm, punctuation is not removed. Results
+ * are reported for all sentences and by sentence length, together with the
+ * parsing throughput.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+public class ParsevalScorer {
+
+  /**
+   * Upper bounds, inclusive, of the sentence length buckets; the last bucket
+   * has no bound.
+   */
+  private static final int[] BUCKETS = { 10, 20, 30, 40, Integer.MAX_VALUE };
+  /**
+   * The tag of the empty elements of the Penn Treebank, e.g., traces.
+   */
+  private static final String EMPTY_ELEMENT = "-NONE-";
+
+  private final Counts all = new Counts();
+  private final Counts upTo40 = new Counts();
+  private final Counts[] buckets = new Counts[BUCKETS.length];
+  private final long lStartTime = System.nanoTime();
+  private long tokens;
+  private long skipped;
+
+  private static final class Counts {
+    private long sentences;
+    private long exact;
+    private long gold;
+    private long test;
+    private long matched;
+
+    private void add(final int goldBrackets, final int testBrackets,
+        final int matchedBrackets) {
+      this.sentences++;
+      this.gold += goldBrackets;
+      this.test += testBrackets;
+      this.matched += matchedBrackets;
+      if (matchedBrackets == goldBrackets && matchedBrackets == testBrackets) {
+        this.exact++;
+      }
+    }
+
+    private double precision() {
+      return this.test == 0 ? 0 : 100.0 * this.matched / this.test;
+    }
+
+    private double recall() {
+      return this.gold == 0 ? 0 : 100.0 * this.matched / this.gold;
+    }
+
+    private double f1() {
+      final double precision = precision();
+      final double recall = recall();
+      return precision + recall == 0 ? 0 : 2 * precision * recall
+          / (precision + recall);
+    }
+
+    private String format(final String name) {
+      return String.format("%-10s %9d %9.2f %9.2f %9.2f %9.2f", name,
+          this.sentences, precision(), recall(), f1(), this.sentences == 0 ? 0
+              : 100.0 * this.exact / this.sentences);
+    }
+  }
+
+  /**
+   * A labeled bracket over token positions.
+   */
+  private static final class Bracket {
+    private final String label;
+    private final int start;
+    private final int end;
+
+    private Bracket(final String label, final int start, final int end) {
+      this.label = label;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * this.label.hashCode() + this.start) + this.end;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof Bracket)) {
+        return false;
+      }
+      final Bracket other = (Bracket) obj;
+      return this.start == other.start && this.end == other.end
+          && this.label.equals(other.label);
+    }
+  }
+
+  public ParsevalScorer() {
+    for (int i = 0; i < this.buckets.length; i++) {
+      this.buckets[i] = new Counts();
+    }
+  }
+
+  /**
+   * Scores a sentence. Sentences whose parse has a different number of tokens
+   * than the gold tree are counted as skipped.
+   *
+   * @param gold
+   *          the gold tree
+   * @param test
+   *          the parsed tree
+   */
+  public synchronized void add(final Parse gold, final Parse test) {
+    final int length = gold.getTagNodes().length;
+    this.tokens += length;
+    if (test == null || test.getTagNodes().length != length) {
+      this.skipped++;
+      return;
+    }
+    final Map<Bracket, Integer> goldBrackets = getBrackets(gold);
+    final Map<Bracket, Integer> testBrackets = getBrackets(test);
+    int matched = 0;
+    for (final Map.Entry<Bracket, Integer> bracket : testBrackets.entrySet()) {
+      final Integer goldCount = goldBrackets.get(bracket.getKey());
+      if (goldCount != null) {
+        matched += Math.min(goldCount, bracket.getValue());
+      }
+    }
+    final int goldCount = count(goldBrackets);
+    final int testCount = count(testBrackets);
+    this.all.add(goldCount, testCount, matched);
+    if (length <= 40) {
+      this.upTo40.add(goldCount, testCount, matched);
+    }
+    int bucket = 0;
+    while (length > BUCKETS[bucket]) {
+      bucket++;
+    }
+    this.buckets[bucket].add(goldCount, testCount, matched);
+  }
+
+  /**
+   * Removes the empty elements, tagged {@value #EMPTY_ELEMENT}, of a gold
+   * tree and the constituents left without tokens, as EVALB does. The text
+   * of the new tree is its remaining tokens separated by spaces.
+   *
+   * @param tree
+   *          the gold tree
+   * @return the tree without empty elements, or null if every token is an
+   *         empty element
+   */
+  public static Parse removeEmptyElements(final Parse tree) {
+    final List<String> words = new ArrayList<>();
+    for (final Parse tag : tree.getTagNodes()) {
+      if (!EMPTY_ELEMENT.equals(tag.getType())) {
+        words.add(tag.getCoveredText());
+      }
+    }
+    if (words.isEmpty()) {
+      return null;
+    }
+    final String text = String.join(" ", words);
+    return copyWithoutEmptyElements(tree, text, new int[1]);
+  }
+
+  /**
+   * @param node
+   *          a node of the gold tree
+   * @param text
+   *          the text of the new tree
+   * @param offset
+   *          the offset in the text of the next token
+   * @return the copy of the node or null if it only covers empty elements
+   */
+  private static Parse copyWithoutEmptyElements(final Parse node,
+      final String text, final int[] offset) {
+    if (node.isPosTag()) {
+      if (EMPTY_ELEMENT.equals(node.getType())) {
+        return null;
+      }
+      final Span span = new Span(offset[0], offset[0]
+          + node.getCoveredText().length());
+      offset[0] = span.getEnd() + 1;
+      final Parse tag = new Parse(text, span, node.getType(), node.getProb(),
+          0);
+      tag.insert(new Parse(text, span, AbstractBottomUpParser.TOK_NODE, 0, 0));
+      return tag;
+    }
+    final List<Parse> children = new ArrayList<>();
+    for (final Parse child : node.getChildren()) {
+      final Parse copy = copyWithoutEmptyElements(child, text, offset);
+      if (copy != null) {
+        children.add(copy);
+      }
+    }
+    if (children.isEmpty()) {
+      return null;
+    }
+    final Parse copy = new Parse(text, new Span(children.get(0).getSpan()
+        .getStart(), children.get(children.size() - 1).getSpan().getEnd()),
+        node.getType(), node.getProb(), 0);
+    for (final Parse child : children) {
+      copy.insert(child);
+    }
+    return copy;
+  }
+
+  /**
+   * @return the F1 of all the sentences scored
+   */
+  public synchronized double getF1() {
+    return this.all.f1();
+  }
+
+  /**
+   * @return the report with the scores and the throughput
+   */
+  @Override
+  public synchronized String toString() {
+    final double seconds = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - this.lStartTime)) / 1000.0;
+    final StringBuilder report = new StringBuilder();
+    report.append(String.format("%-10s %9s %9s %9s %9s %9s%n", "Length",
+        "Sentences", "LP", "LR", "F1", "Exact"));
+    int lowerBound = 1;
+    for (int i = 0; i < BUCKETS.length; i++) {
+      final String name = BUCKETS[i] == Integer.MAX_VALUE ? ">" + (lowerBound - 1)
+          : lowerBound + "-" + BUCKETS[i];
+      report.append(this.buckets[i].format(name)).append('\n');
+      lowerBound = BUCKETS[i] + 1;
+    }
+    report.append(this.upTo40.format("<=40")).append('\n');
+    report.append(this.all.format("All")).append('\n');
+    report.append(String.format(
+        "Skipped sentences: %d%nParsed %d sentences and %d tokens in %.1f seconds: %.1f sentences/s, %.1f tokens/s%n",
+        this.skipped, this.all.sentences + this.skipped, this.tokens, seconds,
+        (this.all.sentences + this.skipped) / seconds, this.tokens / seconds));
+    return report.toString();
+  }
+
+  private static int count(final Map<Bracket, Integer> brackets) {
+    int count = 0;
+    for (final int bracketCount : brackets.values()) {
+      count += bracketCount;
+    }
+    return count;
+  }
+
+  /**
+   * @param parse
+   *          a tree
+   * @return the scored brackets of the tree and how many times each occurs
+   */
+  private static Map<Bracket, Integer> getBrackets(final Parse parse) {
+    // token position of the character offsets where tokens start and end
+    final Parse[] tokens = parse.getTagNodes();
+    final Map<Integer, Integer> starts = new HashMap<>();
+    final Map<Integer, Integer> ends = new HashMap<>();
+    for (int i = 0; i < tokens.length; i++) {
+      starts.put(tokens[i].getSpan().getStart(), i);
+      ends.put(tokens[i].getSpan().getEnd(), i + 1);
+    }
+    final Map<Bracket, Integer> brackets = new HashMap<>();
+    final Deque<Parse> nodes = new ArrayDeque<>();
+    nodes.push(parse);
+    while (!nodes.isEmpty()) {
+      final Parse node = nodes.pop();
+      for (final Parse child : node.getChildren()) {
+        nodes.push(child);
+      }
+      final String type = node.getType();
+      if (node == parse || node.isPosTag()
+          || type.equals(AbstractBottomUpParser.TOK_NODE)
+          || type.equals(AbstractBottomUpParser.TOP_NODE)) {
+        continue;
+      }
+      final Span span = node.getSpan();
+      final Integer start = starts.get(span.getStart());
+      final Integer end = ends.get(span.getEnd());
+      if (start != null && end != null) {
+        brackets.merge(new Bracket(normalizeLabel(type), start, end), 1,
+            Integer::sum);
+      }
+    }
+    return brackets;
+  }
+
+  /**
+   * @param type
+   *          a constituent label
+   * @return the label without head marks, functional tags and indexes, e.g.,
+   *         NP for NP-SBJ-1=H
+   */
+  private static String normalizeLabel(final String type) {
+    final String label = CollinsHeadFinder.removeHeadMark(type);
+    for (int i = 1; i < label.length(); i++) {
+      final char c = label.charAt(i);
+      if (c == '-' || c == '=') {
+        return label.substring(0, i);
+      }
+    }
+    return label;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import eus.ixa.ixa.pipe.heads.CollinsHeadFinder;
+import opennlp.tools.parser.AbstractBottomUpParser;
+import opennlp.tools.parser.Parse;
+import opennlp.tools.util.Span;
+
+/**
+ * Writes parse trees in Penn Treebank oneline format, producing the same
+ * output as {@link Parse#show(StringBuffer)}. Trees are rendered into an
+ * unsynchronized buffer reused for every tree and then appended to the
+ * writer, and the heads are rendered from the heads array instead of renaming the
+ * labels of the tree.
+ * <p>
+ * Instances are not thread-safe; use one per output stream.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+final class PennTreeWriter {
+
+  private final Writer writer;
+  private final StringBuilder tree = new StringBuilder(256);
+  private int[] heads;
+  private int node;
+
+  /**
+   * @param writer
+   *          the output
+   */
+  PennTreeWriter(final Writer writer) {
+    this.writer = writer;
+  }
+
+  /**
+   * Writes a tree.
+   *
+   * @param parse
+   *          the parse tree
+   * @param heads
+   *          the head child position of every node in preorder, as returned
+   *          by {@link eus.ixa.ixa.pipe.heads.HeadFinder#findHeads(Parse)}, or
+   *          null if heads are not marked
+   * @throws IOException
+   *           if the tree cannot be written
+   */
+  void write(final Parse parse, final int[] heads) throws IOException {
+    this.tree.setLength(0);
+    this.heads = heads;
+    this.node = 0;
+    show(parse, false);
+    this.writer.append(this.tree);
+  }
+
+  /**
+   * Writes a line break.
+   *
+   * @throws IOException
+   *           if io error
+   */
+  void newLine() throws IOException {
+    this.writer.write('\n');
+  }
+
+  private void show(final Parse parse, final boolean isHead) {
+    final int head = this.heads == null ? -1 : this.heads[this.node];
+    this.node++;
+    final String text = parse.getText();
+    final Span span = parse.getSpan();
+    final boolean isToken = parse.getType().equals(
+        AbstractBottomUpParser.TOK_NODE);
+    if (!isToken) {
+      this.tree.append('(').append(parse.getType());
+      if (isHead) {
+        this.tree.append(CollinsHeadFinder.HEADMARK);
+      }
+      this.tree.append(' ');
+    }
+    int start = span.getStart();
+    final Parse[] children = parse.getChildren();
+    for (int i = 0; i < children.length; i++) {
+      final Span childSpan = children[i].getSpan();
+      if (start < childSpan.getStart()) {
+        appendToken(text.substring(start, childSpan.getStart()));
+      }
+      show(children[i], i == head);
+      start = childSpan.getEnd();
+    }
+    if (start < span.getEnd()) {
+      appendToken(text.substring(start, span.getEnd()));
+    }
+    if (!isToken) {
+      this.tree.append(')');
+    }
+  }
+
+  /**
+   * Appends a token escaping brackets as {@link Parse#show(StringBuffer)}
+   * does.
+   *
+   * @param token
+   *          the token
+   */
+  private void appendToken(final String token) {
+    switch (token) {
+    case "(":
+      this.tree.append("-LRB-");
+      break;
+    case ")":
+      this.tree.append("-RRB-");
+      break;
+    case "{":
+      this.tree.append("-LCB-");
+      break;
+    case "}":
+      this.tree.append("-RCB-");
+      break;
+    case "[":
+      this.tree.append("-LSB-");
+      break;
+    case "]":
+      this.tree.append("-RSB-");
+      break;
+    default:
+      this.tree.append(token);
+    }
+  }
+}
@@ -0,0 +1,337 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jdom2.JDOMException;
+
+import ixa.kaflib.KAFDocument;
+
+/**
+ * Holds the {@link Annotate} used by the servers and allows to replace its
+ * model without stopping them. A new model is loaded and warmed up in the
+ * background; new requests are then switched to it atomically while the
+ * requests in flight finish with the old one, whose model is released and
+ * unloaded afterwards.
+ * <p>
+ * Every request takes a {@link Lease} of the current annotator and closes it
+ * when done.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+public class ReloadableAnnotator {
+
+  /**
+   * Sentences of several lengths parsed in turn to warm up a newly loaded
+   * model before it gets traffic.
+   */
+  private static final String[][] WARMUP_SENTENCES = {
+      { "This", "is", "the", "first", "sentence", "parsed", "with", "the",
+          "new", "model", "." },
+      { "Warm", "up", "." },
+      { "The", "committee", "said", "on", "Tuesday", "that", "it", "would",
+          "review", "the", "proposal", "before", "the", "end", "of", "the",
+          "year", ",", "although", "several", "members", "had", "already",
+          "expressed", "their", "doubts", "." },
+      { "Prices", "rose", "sharply", "in", "March", "." },
+      { "After", "the", "storm", "passed", ",", "the", "villagers", "who",
+          "had", "left", "their", "homes", "returned", "to", "find", "the",
+          "bridge", "across", "the", "river", "(", "built", "in", "1920",
+          ")", "washed", "away", "and", "the", "main", "road", "blocked",
+          "by", "fallen", "trees", "." },
+      { "Does", "the", "parser", "handle", "questions", "?" } };
+
+  /**
+   * The properties used to create every annotator; the model property is
+   * replaced on every reload.
+   */
+  private final Properties properties;
+  private final int warmupSentences;
+  /**
+   * The annotation output format, one of NAF (default) and oneline penn
+   * treebank.
+   */
+  private final String outputFormat;
+  /**
+   * The version of ixa-pipe-parse written in the linguistic processors.
+   */
+  private final String version = CLI.class.getPackage()
+      .getImplementationVersion()
+      + "-" + CLI.class.getPackage().getSpecificationVersion();
+  private final ParserMetrics metrics = ParserMetrics.getDefault();
+  private volatile Lease current;
+  private final Object reloadLock = new Object();
+
+  /**
+   * A reference to an annotator. The annotator is closed when the holder has
+   * replaced it and every lease has been closed.
+   */
+  public static final class Lease implements AutoCloseable {
+    private final Annotate annotator;
+    private final String model;
+    /**
+     * Number of open leases plus one while this is the current annotator.
+     */
+    private final AtomicInteger users = new AtomicInteger(1);
+    /**
+     * Whether the model must be unloaded from the registry on close; false
+     * if the new annotator uses the very same model.
+     */
+    private volatile boolean unloadModel;
+
+    private Lease(final Annotate annotator, final String model) {
+      this.annotator = annotator;
+      this.model = model;
+    }
+
+    /**
+     * @return the annotator
+     */
+    public Annotate getAnnotator() {
+      return this.annotator;
+    }
+
+    /**
+     * @return the path of the model used by the annotator
+     */
+    public String getModel() {
+      return this.model;
+    }
+
+    private boolean retain() {
+      int count;
+      do {
+        count = this.users.get();
+        if (count == 0) {
+          return false;
+        }
+      } while (!this.users.compareAndSet(count, count + 1));
+      return true;
+    }
+
+    @Override
+    public void close() {
+      if (this.users.decrementAndGet() == 0) {
+        final String modelKey = this.annotator.getModelKey();
+        this.annotator.close();
+        if (this.unloadModel) {
+          ModelRegistry.unload(modelKey);
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates the holder and loads the model of the properties.
+   *
+   * @param properties
+   *          the annotation properties
+   */
+  public ReloadableAnnotator(final Properties properties) {
+    this.properties = properties;
+    this.warmupSentences = Integer.parseInt(properties.getProperty(
+        "warmupSentences", Flags.DEFAULT_WARMUP_SENTENCES));
+    this.outputFormat = properties.getProperty("outputFormat",
+        Flags.DEFAULT_OUTPUT_FORMAT);
+    this.current = new Lease(new Annotate(properties),
+        properties.getProperty("model"));
+  }
+
+  /**
+   * Gets the current annotator. The lease must be closed after use.
+   *
+   * @return the lease of the current annotator
+   */
+  public Lease acquire() {
+    while (true) {
+      final Lease lease = this.current;
+      if (lease.retain()) {
+        return lease;
+      }
+      // replaced and closed meanwhile, read the new one
+    }
+  }
+
+  /**
+   * Annotates a NAF document with the current annotator, as requested by the
+   * clients of the servers.
+   *
+   * @param document
+   *          the NAF document
+   * @return the annotated NAF document or the oneline trees, depending on
+   *         the output format
+   * @throws IOException
+   *           if io error
+   * @throws JDOMException
+   *           if the document is not well formed
+   */
+  public String annotate(final String document) throws IOException,
+      JDOMException {
+    return annotate(document, ConstituentParser.NO_DEADLINE);
+  }
+
+  /**
+   * Annotates a NAF document as {@link #annotate(String)} until the deadline
+   * of the request.
+   *
+   * @param document
+   *          the NAF document
+   * @param deadline
+   *          the nano time at which the request runs out of time, or
+   *          {@link ConstituentParser#NO_DEADLINE}
+   * @return the annotated NAF document or the oneline trees, depending on
+   *         the output format
+   * @throws IOException
+   *           if io error
+   * @throws JDOMException
+   *           if the document is not well formed
+   * @throws java.util.concurrent.CancellationException
+   *           if the deadline passes before the document is parsed
+   */
+  public String annotate(final String document, final long deadline)
+      throws IOException, JDOMException {
+    try (Lease lease = acquire()) {
+      long lStartTime = System.nanoTime();
+      final KAFDocument kaf = KAFDocument.createFromStream(new BufferedReader(
+          new StringReader(document)));
+      this.metrics.record(ParserMetrics.Stage.DESERIALIZE, lStartTime);
+      final KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(
+          "constituency", "ixa-pipe-parse-"
+              + Paths.get(lease.getModel()).getFileName(), this.version);
+      newLp.setBeginTimestamp();
+      if (this.outputFormat.equalsIgnoreCase("oneline")) {
+        return lease.getAnnotator().parseToOneline(kaf, deadline);
+      }
+      lease.getAnnotator().parseToKAF(kaf, deadline);
+      newLp.setEndTimestamp();
+      lStartTime = System.nanoTime();
+      final String kafToString = kaf.toString();
+      this.metrics.record(ParserMetrics.Stage.SERIALIZE, lStartTime);
+      return kafToString;
+    }
+  }
+
+  /**
+   * Loads and warms up a model and switches new requests to it. Requests
+   * using the previous model finish with it.
+   *
+   * @param model
+   *          the path of the new model
+   * @return the key of the new model in the {@link ModelRegistry}
+   */
+  public String reload(final String model) {
+    synchronized (this.reloadLock) {
+      final Properties reloadProperties = new Properties();
+      reloadProperties.putAll(this.properties);
+      reloadProperties.setProperty("model", model);
+      final long lStartTime = System.nanoTime();
+      final Annotate annotator = new Annotate(reloadProperties);
+      final List<String[]> sentences = new ArrayList<>(this.warmupSentences);
+      for (int i = 0; i < this.warmupSentences; i++) {
+        sentences.add(WARMUP_SENTENCES[i % WARMUP_SENTENCES.length]);
+      }
+      annotator.warmUp(sentences);
+      final Lease previous = this.current;
+      this.current = new Lease(annotator, model);
+      previous.unloadModel = !previous.annotator.getModelKey().equals(
+          annotator.getModelKey());
+      previous.close();
+      System.err.println("-> Switched to model " + model + " in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lStartTime)
+          + " milliseconds");
+      return annotator.getModelKey();
+    }
+  }
+
+  /**
+   * Reloads the current model file, e.g., after it has been replaced.
+   *
+   * @return the key of the new model in the {@link ModelRegistry}
+   */
+  public String reload() {
+    return reload(this.current.getModel());
+  }
+
+  /**
+   * Starts a daemon thread reloading the model whenever its file is modified
+   * or replaced. Changes are applied once the file has not changed for the
+   * given quiet period, so that partially copied models are not loaded.
+   *
+   * @param quietPeriod
+   *          milliseconds without changes before reloading
+   * @throws IOException
+   *           if the directory of the model cannot be watched
+   */
+  public void watchModel(final long quietPeriod) throws IOException {
+    final Path modelPath = Paths.get(this.current.getModel()).toAbsolutePath();
+    final Path modelDir = modelPath.getParent();
+    final WatchService watchService = FileSystems.getDefault().newWatchService();
+    modelDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY);
+    final Thread watcher = new Thread(() -> {
+      try {
+        while (true) {
+          if (!isModelChanged(watchService.take(), modelPath)) {
+            continue;
+          }
+          // wait until the file stops changing
+          WatchKey key;
+          while ((key = watchService.poll(quietPeriod, TimeUnit.MILLISECONDS)) != null) {
+            isModelChanged(key, modelPath);
+          }
+          try {
+            reload(modelPath.toString());
+          } catch (final RuntimeException e) {
+            System.err.println("-> Could not reload model " + modelPath + ": " + e.getMessage());
+          }
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, "ixa-pipe-parse-model-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+    System.err.println("-> Watching model file " + modelPath);
+  }
+
+  private static boolean isModelChanged(final WatchKey key, final Path modelPath) {
+    boolean changed = false;
+    for (final WatchEvent<?> event : key.pollEvents()) {
+      if (modelPath.getFileName().equals(event.context())) {
+        changed = true;
+      }
+    }
+    key.reset();
+    return changed;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import opennlp.tools.ml.maxent.GIS;
+import opennlp.tools.ml.maxent.GISModel;
+import opennlp.tools.ml.model.Event;
+import opennlp.tools.ml.model.MaxentModel;
+import opennlp.tools.util.ObjectStreamUtils;
+
+/**
+ * Checks that {@link CompactMaxentModel} predicts as the {@link GISModel} it
+ * is made from, but for the rounding of the weights to floats, and that it
+ * predicts the same after being written and read as in a
+ * {@link ModelSnapshot}.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+public class CompactMaxentModelTest {
+
+  /**
+   * Differences allowed between the probabilities of the GIS model and of
+   * the compact model, whose weights are floats.
+   */
+  private static final double TOLERANCE = 1e-6;
+  /**
+   * Contexts of known and unknown predicates, of several lengths.
+   */
+  private static final String[][] CONTEXTS = { { "w=the", "prev=BOS" },
+      { "w=dog", "prev=DT", "suffix=og" }, { "w=runs", "prev=NN", "unseen" },
+      { "w=cat", "prev=VBZ" }, { "unseen" }, {} };
+  private static final float[] VALUES = { 0.5f, 2f, 1f };
+
+  @Test
+  public void compactModelPredictsAsGisModel() throws Exception {
+    final GISModel model = train();
+    final MaxentModel compact = CompactMaxentModel.compact(model);
+    assertEquals(CompactMaxentModel.class, compact.getClass());
+    assertEquals(model.getNumOutcomes(), compact.getNumOutcomes());
+    for (int i = 0; i < model.getNumOutcomes(); i++) {
+      assertEquals(model.getOutcome(i), compact.getOutcome(i));
+    }
+    for (final String[] context : CONTEXTS) {
+      assertArrayEquals(model.eval(context), compact.eval(context), TOLERANCE);
+    }
+    final String[] context = CONTEXTS[1];
+    assertArrayEquals(model.eval(context, VALUES),
+        compact.eval(context, VALUES), TOLERANCE);
+  }
+
+  @Test
+  public void writtenModelPredictsTheSame() throws Exception {
+    final CompactMaxentModel compact = (CompactMaxentModel) CompactMaxentModel
+        .compact(train());
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    compact.write(new DataOutputStream(bytes));
+    assertEquals(0, bytes.size() % 8);
+
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+    final CompactMaxentModel read = CompactMaxentModel.read(buffer);
+    assertEquals(bytes.size(), buffer.position());
+    assertEquals(compact.getNumOutcomes(), read.getNumOutcomes());
+    for (int i = 0; i < compact.getNumOutcomes(); i++) {
+      assertEquals(compact.getOutcome(i), read.getOutcome(i));
+    }
+    for (final String[] context : CONTEXTS) {
+      assertArrayEquals(compact.eval(context), read.eval(context), 0);
+    }
+    final String[] context = CONTEXTS[1];
+    assertArrayEquals(compact.eval(context, VALUES),
+        read.eval(context, VALUES), 0);
+  }
+
+  /**
+   * @return a model trained on a few tagging events; their contexts are of
+   *         different lengths, so that the model has a correction parameter
+   */
+  private static GISModel train() throws Exception {
+    final Event[] events = {
+        new Event("DT", new String[] { "w=the", "prev=BOS" }),
+        new Event("NN", new String[] { "w=dog", "prev=DT", "suffix=og" }),
+        new Event("VBZ", new String[] { "w=runs", "prev=NN", "suffix=ns" }),
+        new Event("DT", new String[] { "w=a", "prev=BOS" }),
+        new Event("NN", new String[] { "w=cat", "prev=DT", "suffix=at" }),
+        new Event("VBZ", new String[] { "w=sleeps", "prev=NN" }),
+        new Event("NN", new String[] { "w=runs", "prev=DT", "suffix=ns" }),
+        new Event("DT", new String[] { "w=the", "prev=VBZ" }) };
+    return GIS.trainModel(ObjectStreamUtils.createObjectStream(events), 100,
+        0);
+  }
+}
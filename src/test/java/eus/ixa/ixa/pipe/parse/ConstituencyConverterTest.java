@@ -0,0 +1,144 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.NonTerminal;
+import ixa.kaflib.Term;
+import ixa.kaflib.Terminal;
+import ixa.kaflib.Tree;
+import ixa.kaflib.TreeNode;
+import ixa.kaflib.WF;
+import opennlp.tools.parser.Parse;
+
+/**
+ * Checks that {@link ConstituencyConverter} builds the same constituency
+ * layer as {@link KAFDocument#addConstituencyFromParentheses(String)} on the
+ * Penn Treebank rendering of the tree.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+public class ConstituencyConverterTest {
+
+  private static final String[] FORMS = { "New", "York", "is", "big", "." };
+  private static final String TREE = "(TOP (S (NP (NNP New) (NNP York)) "
+      + "(VP (VBZ is) (ADJP (JJ big))) (. .)))";
+  /**
+   * The head child of every node of the tree in preorder, tokens included.
+   */
+  private static final int[] HEADS = { 0, 1, 1, 0, -1, 0, -1, 0, 0, -1, 0,
+      0, -1, 0, -1 };
+
+  /**
+   * "New York" is a multiword term: both word forms keep their tag node, with
+   * a terminal spanning the same term, and the second one is the head of the
+   * noun phrase. Heads are only marked on non-terminals.
+   */
+  @Test
+  public void multiwordTreeMatchesParentheses() throws Exception {
+    final KAFDocument baseline = newDocument(true);
+    final StringWriter penn = new StringWriter();
+    new PennTreeWriter(penn).write(Parse.parseParse(TREE), HEADS);
+    baseline.addConstituencyFromParentheses(penn.toString());
+
+    final KAFDocument kaf = newDocument(true);
+    ConstituencyConverter.addTree(kaf, kaf.getWFs(), Parse.parseParse(TREE),
+        HEADS);
+
+    assertEquals(
+        "(TOP (S* (NP (NNP t1) (NNP* t1)) (VP* (VBZ* t2) (ADJP (JJ* t3))) (. t4)))",
+        render(kaf));
+    assertEquals(render(baseline), render(kaf));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void sentenceWithoutTermsIsRejected() throws Exception {
+    final KAFDocument kaf = newDocument(false);
+    ConstituencyConverter.addTree(kaf, kaf.getWFs(), Parse.parseParse(TREE),
+        HEADS);
+  }
+
+  /**
+   * @param withTerms
+   *          whether to add the terms of the word forms
+   * @return a document with the sentence and, if asked, "New York" as one
+   *         term and a term for every other word form
+   */
+  private static KAFDocument newDocument(final boolean withTerms) {
+    final KAFDocument kaf = new KAFDocument("en", "v1.naf");
+    final List<WF> wfs = new ArrayList<>();
+    int offset = 0;
+    for (final String form : FORMS) {
+      wfs.add(kaf.newWF(offset, form, 1));
+      offset += form.length() + 1;
+    }
+    if (withTerms) {
+      kaf.newTerm(KAFDocument.newWFSpan(wfs.subList(0, 2)));
+      for (int i = 2; i < wfs.size(); i++) {
+        kaf.newTerm(KAFDocument.newWFSpan(wfs.subList(i, i + 1)));
+      }
+    }
+    return kaf;
+  }
+
+  /**
+   * @param kaf
+   *          the document
+   * @return the trees of the constituency layer in brackets, with the term
+   *         ids of the terminals and heads marked with *
+   */
+  private static String render(final KAFDocument kaf) {
+    final StringBuilder trees = new StringBuilder();
+    for (final Tree tree : kaf.getConstituents()) {
+      render(tree.getRoot(), trees);
+    }
+    return trees.toString();
+  }
+
+  private static void render(final TreeNode node, final StringBuilder trees) {
+    if (node instanceof Terminal) {
+      final List<String> termIds = new ArrayList<>();
+      for (final Term term : ((Terminal) node).getSpan().getTargets()) {
+        termIds.add(term.getId());
+      }
+      trees.append(String.join("+", termIds));
+      if (node.getHead()) {
+        trees.append('*');
+      }
+      return;
+    }
+    final NonTerminal nonTerminal = (NonTerminal) node;
+    trees.append('(').append(nonTerminal.getLabel());
+    if (node.getHead()) {
+      trees.append('*');
+    }
+    for (final TreeNode child : nonTerminal.getChildren()) {
+      trees.append(' ');
+      render(child, trees);
+    }
+    trees.append(')');
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import opennlp.tools.parser.AbstractBottomUpParser;
+import opennlp.tools.parser.Parse;
+import opennlp.tools.util.Span;
+
+/**
+ * Checks that {@link DiskParseCache} keeps the trees and their heads, rejects
+ * damaged records, compacts itself and shares its records between instances.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+public class DiskParseCacheTest {
+
+  private static final String MODEL_KEY = "/models/en-parser.bin#1";
+  private static final String TEXT = "New York is big .";
+  private static final String TREE = "(TOP@is (S@is (NP@York (NNP@New New) "
+      + "(NNP@York York)) (VP@is (VBZ@is is) (ADJP@big (JJ@big big))) "
+      + "(.@. .)))";
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void treesKeepTheirHeads() throws Exception {
+    final Path dir = this.folder.getRoot().toPath();
+    try (DiskParseCache cache = newCache(dir, MODEL_KEY, 1 << 20)) {
+      cache.put(TEXT, 1, new Parse[] { newTree() });
+      assertEquals(TREE, render(cache.get(TEXT, 1)[0]));
+      assertNull(cache.get(TEXT, 2));
+    }
+    try (DiskParseCache cache = newCache(dir, MODEL_KEY, 1 << 20)) {
+      assertEquals(TREE, render(cache.get(TEXT, 1)[0]));
+    }
+  }
+
+  @Test
+  public void corruptRecordIsRejected() throws Exception {
+    final Path dir = this.folder.getRoot().toPath();
+    try (DiskParseCache cache = newCache(dir, MODEL_KEY, 1 << 20)) {
+      cache.put(TEXT, 1, new Parse[] { newTree() });
+    }
+    // flips the last byte of the trees, before the checksum
+    try (FileChannel file = FileChannel.open(getCacheFile(dir),
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final long position = file.size() - 5;
+      final ByteBuffer last = ByteBuffer.allocate(1);
+      file.read(last, position);
+      last.put(0, (byte) ~last.get(0));
+      last.rewind();
+      file.write(last, position);
+    }
+    try (DiskParseCache cache = newCache(dir, MODEL_KEY, 1 << 20)) {
+      assertNull(cache.get(TEXT, 1));
+    }
+  }
+
+  @Test
+  public void compactionKeepsTheMostRecentRecords() throws Exception {
+    final Path dir = this.folder.getRoot().toPath();
+    final int maxBytes = 4096;
+    try (DiskParseCache cache = newCache(dir, MODEL_KEY, maxBytes)) {
+      for (int i = 0; i < 100; i++) {
+        cache.put(TEXT + " " + i, 1, new Parse[] { newTree() });
+      }
+      assertTrue(Files.size(getCacheFile(dir)) <= maxBytes);
+      assertNotNull(cache.get(TEXT + " 99", 1));
+      assertNull(cache.get(TEXT + " 0", 1));
+    }
+  }
+
+  @Test
+  public void secondInstanceReadsAppendedRecords() throws Exception {
+    final Path dir = this.folder.getRoot().toPath();
+    try (DiskParseCache writer = newCache(dir, MODEL_KEY, 1 << 20);
+        DiskParseCache reader = newCache(dir, MODEL_KEY, 1 << 20)) {
+      assertNull(reader.get(TEXT, 1));
+      writer.put(TEXT, 1, new Parse[] { newTree() });
+      assertEquals(TREE, render(reader.get(TEXT, 1)[0]));
+    }
+  }
+
+  /**
+   * The cache of a previous model is only deleted once nobody uses it.
+   */
+  @Test
+  public void staleCacheIsDeletedWhenUnused() throws Exception {
+    final Path dir = this.folder.getRoot().toPath();
+    final DiskParseCache previous = newCache(dir, MODEL_KEY, 1 << 20);
+    final Path previousFile = getCacheFile(dir);
+    try (DiskParseCache current = newCache(dir, "/models/en-parser.bin#2",
+        1 << 20)) {
+      assertTrue(Files.exists(previousFile));
+    }
+    previous.close();
+    try (DiskParseCache current = newCache(dir, "/models/en-parser.bin#3",
+        1 << 20)) {
+      assertFalse(Files.exists(previousFile));
+    }
+  }
+
+  /**
+   * @return a cache looking for the records of other instances on every miss
+   */
+  private static DiskParseCache newCache(final Path dir, final String modelKey,
+      final long maxBytes) throws IOException {
+    return new DiskParseCache(dir, modelKey, maxBytes, 0);
+  }
+
+  private static Path getCacheFile(final Path dir) throws IOException {
+    try (DirectoryStream<Path> caches = Files.newDirectoryStream(dir,
+        "*.parses")) {
+      return caches.iterator().next();
+    }
+  }
+
+  /**
+   * @return the tree of {@link #TREE} with the heads the parser would give
+   */
+  private static Parse newTree() {
+    final Parse[] tags = new Parse[5];
+    final String[] types = { "NNP", "NNP", "VBZ", "JJ", "." };
+    int start = 0;
+    for (int i = 0; i < tags.length; i++) {
+      final int end = TEXT.indexOf(' ', start) < 0 ? TEXT.length() : TEXT
+          .indexOf(' ', start);
+      final Span span = new Span(start, end);
+      tags[i] = new Parse(TEXT, span, types[i], 1, i);
+      tags[i].insert(new Parse(TEXT, span, AbstractBottomUpParser.TOK_NODE, 1,
+          i));
+      start = end + 1;
+    }
+    final Parse np = new Parse(TEXT, new Span(0, 8), "NP", 1, tags[1]);
+    np.insert(tags[0]);
+    np.insert(tags[1]);
+    final Parse adjp = new Parse(TEXT, tags[3].getSpan(), "ADJP", 1, tags[3]);
+    adjp.insert(tags[3]);
+    final Parse vp = new Parse(TEXT, new Span(9, 15), "VP", 1, tags[2]);
+    vp.insert(tags[2]);
+    vp.insert(adjp);
+    final Parse s = new Parse(TEXT, new Span(0, TEXT.length()), "S", 1, vp);
+    s.insert(np);
+    s.insert(vp);
+    s.insert(tags[4]);
+    final Parse top = new Parse(TEXT, s.getSpan(),
+        AbstractBottomUpParser.TOP_NODE, 1, s);
+    top.insert(s);
+    return top;
+  }
+
+  /**
+   * @return the tree in brackets, with the head word of every node after @
+   */
+  private static String render(final Parse parse) {
+    if (parse.getType().equals(AbstractBottomUpParser.TOK_NODE)) {
+      return parse.getCoveredText();
+    }
+    final StringBuilder tree = new StringBuilder();
+    tree.append('(').append(parse.getType()).append('@')
+        .append(parse.getHead().getCoveredText());
+    for (final Parse child : parse.getChildren()) {
+      tree.append(' ').append(render(child));
+    }
+    return tree.append(')').toString();
+  }
+}
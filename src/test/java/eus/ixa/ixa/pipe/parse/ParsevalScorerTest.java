@@ -0,0 +1,135 @@
+/*
+ *Copyright 2020 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.parse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import opennlp.tools.parser.Parse;
+
+/**
+ * Checks the labeled bracket counts of {@link ParsevalScorer}: repeated
+ * brackets, empty elements, label normalization and the report by sentence
+ * length.
+ *
+ * @author ragerri
+ * @version 2020-01-22
+ */
+public class ParsevalScorerTest {
+
+  private static final String TREE = "(TOP (S (NP (DT The) (NN dog)) "
+      + "(VP (VBZ barks))))";
+
+  /**
+   * The gold unary chain NP over NP has two brackets with the same label and
+   * span, of which the parse only matches one.
+   */
+  @Test
+  public void repeatedBracketsAreMatchedOnce() {
+    final ParsevalScorer scorer = new ParsevalScorer();
+    scorer.add(Parse.parseParse("(TOP (S (NP (NP (NNS Dogs))) (VP (VBP bark))))"),
+        Parse.parseParse("(TOP (S (NP (NNS Dogs)) (VP (VBP bark))))"));
+
+    // precision 3/3, recall 3/4
+    assertEquals(2 * 100.0 * 75.0 / 175.0, scorer.getF1(), 1e-9);
+  }
+
+  @Test
+  public void emptyElementsAreRemoved() {
+    final Parse gold = ParsevalScorer.removeEmptyElements(Parse
+        .parseParse("(TOP (S (NP (DT The) (NN dog)) (VP (VBD tried) "
+            + "(S (NP (-NONE- *)) (VP (TO to) (VP (VB bark)))))))"));
+    assertEquals("The dog tried to bark", gold.getText());
+    assertEquals(5, gold.getTagNodes().length);
+
+    final ParsevalScorer scorer = new ParsevalScorer();
+    scorer.add(gold, Parse.parseParse("(TOP (S (NP (DT The) (NN dog)) "
+        + "(VP (VBD tried) (S (VP (TO to) (VP (VB bark)))))))"));
+    assertEquals(100, scorer.getF1(), 1e-9);
+  }
+
+  @Test
+  public void onlyEmptyElementsLeaveNoTree() {
+    assertNull(ParsevalScorer.removeEmptyElements(Parse
+        .parseParse("(TOP (S (NP (-NONE- *T*))))")));
+  }
+
+  /**
+   * Functional tags, indexes and head marks are not compared.
+   */
+  @Test
+  public void labelsAreNormalized() {
+    final Parse gold = Parse.parseParse(TREE);
+    final Parse s = gold.getChildren()[0];
+    s.setType("S-TPC-2");
+    s.getChildren()[0].setType("NP-SBJ-1=H");
+    s.getChildren()[1].setType("VP=H");
+
+    final ParsevalScorer scorer = new ParsevalScorer();
+    scorer.add(gold, Parse.parseParse(TREE));
+    assertEquals(100, scorer.getF1(), 1e-9);
+  }
+
+  @Test
+  public void sentencesAreReportedByLength() {
+    final ParsevalScorer scorer = new ParsevalScorer();
+    scorer.add(Parse.parseParse(TREE), Parse.parseParse(TREE));
+    final Parse longTree = Parse.parseParse(flatTree(12));
+    scorer.add(longTree, longTree);
+    // a parse with another number of tokens is skipped
+    scorer.add(Parse.parseParse(TREE), Parse.parseParse(flatTree(2)));
+
+    final String report = scorer.toString();
+    assertEquals("1", getRow(report, "1-10")[1]);
+    assertEquals("1", getRow(report, "11-20")[1]);
+    assertEquals("0", getRow(report, ">40")[1]);
+    assertEquals("2", getRow(report, "<=40")[1]);
+    assertEquals("2", getRow(report, "All")[1]);
+    assertTrue(report.contains("Skipped sentences: 1"));
+  }
+
+  /**
+   * @param tokens
+   *          the number of tokens
+   * @return a sentence of nouns without phrases
+   */
+  private static String flatTree(final int tokens) {
+    final StringBuilder tree = new StringBuilder("(TOP (S");
+    for (int i = 0; i < tokens; i++) {
+      tree.append(" (NN w").append(i).append(')');
+    }
+    return tree.append("))").toString();
+  }
+
+  /**
+   * @return the columns of the row of the report with the given name
+   */
+  private static String[] getRow(final String report, final String name) {
+    for (final String line : report.split("\n")) {
+      final String[] columns = line.trim().split("\\s+");
+      if (columns[0].equals(name)) {
+        return columns;
+      }
+    }
+    fail("No row " + name + " in " + report);
+    return null;
+  }
+}